@@ -0,0 +1,158 @@
+package opennlp.textgrounder.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import ags.utils.ApproximateNearestSearch;
+import ags.utils.KdTree;
+import ags.utils.KdTree.SplitMethod;
+
+/**
+ * Benchmarks of building and querying a {@link KdTree}, for each split
+ * method and synthetic data set.
+ */
+@State(Scope.Benchmark)
+public class KdTreeBenchmark {
+    // Number of query points, cycled through by the query benchmarks
+    private static final int QUERIES = 1 << 16;
+    // Neighbours found by the nearest-neighbour benchmarks, and the leaf
+    // budget of the approximate search
+    private static final int K = 10;
+    private static final int MAX_LEAVES = 4;
+
+    @Param({"uniform", "clustered", "duplicates"})
+    public String dataset;
+
+    @Param({"HALFWAY", "MEDIAN", "MAX_MARGIN"})
+    public String splitMethod;
+
+    @Param({"100000"})
+    public int size;
+
+    @Param({"100"})
+    public int bucketSize;
+
+    private double[][] points;
+    private double[][] queries;
+    private KdTree unbalanced;
+    private KdTree balanced;
+    private KdTree searchable;
+    private ApproximateNearestSearch approximate;
+    private double[][] nearestPoints = new double[K][];
+    private double[] nearestDistances = new double[K];
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        points = SyntheticData.coordinates(dataset, size);
+        // Query where the data is, as real lookups do
+        queries = new double[QUERIES][];
+        double[][] near = SyntheticData.coordinates(dataset, QUERIES);
+        for (int i = 0; i < QUERIES; i++)
+            queries[i] = new double[] { near[i][0] + 0.01, near[i][1] - 0.01 };
+        balanced = build();
+        balanced.balance();
+        balanced.annihilateData();
+        searchable = build();
+        searchable.balance();
+        approximate = new ApproximateNearestSearch(searchable, K, MAX_LEAVES, 0.5);
+    }
+
+    private KdTree build() {
+        KdTree tree = new KdTree(2, bucketSize, SplitMethod.valueOf(splitMethod));
+        for (double[] point : points)
+            tree.addPoint(point);
+        return tree;
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpInvocation() {
+        unbalanced = build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        // Report how much memory the tree retains with and without its
+        // points, which JMH has no direct measure for
+        long before = usedMemory();
+        // Copy the points, so that they count towards the tree
+        KdTree tree = new KdTree(2, bucketSize, SplitMethod.valueOf(splitMethod));
+        for (double[] point : points)
+            tree.addPoint(point.clone());
+        tree.balance();
+        long withData = usedMemory() - before;
+        tree.annihilateData();
+        long withoutData = usedMemory() - before;
+        System.out.printf("%nRetained: %d bytes with point data, %d after " +
+                          "annihilateData (%d nodes)%n", withData, withoutData,
+                          tree.getNodes().size());
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public KdTree balance() {
+        unbalanced.balance();
+        return unbalanced;
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public KdTree balanceAndAnnihilate() {
+        unbalanced.balance();
+        unbalanced.annihilateData();
+        return unbalanced;
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public KdTree getLeaf() {
+        next = (next + 1) & (QUERIES - 1);
+        return balanced.getLeaf(queries[next]);
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public KdTree getLeafCoord() {
+        next = (next + 1) & (QUERIES - 1);
+        double[] query = queries[next];
+        return balanced.getLeaf(query[0], query[1]);
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int nearest() {
+        next = (next + 1) & (QUERIES - 1);
+        return searchable.nearest(queries[next], K, nearestPoints,
+                                  nearestDistances);
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int nearestApproximate() {
+        next = (next + 1) & (QUERIES - 1);
+        return approximate.search(queries[next]);
+    }
+}
@@ -0,0 +1,99 @@
+package opennlp.textgrounder.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.sromku.polygon.Point;
+import com.sromku.polygon.Polygon;
+import com.sromku.polygon.PreparedPolygon;
+
+/**
+ * Benchmarks of point-in-polygon tests. By default the polygons are
+ * synthetic, with the given number of vertices. If the system property
+ * bench.geojson names a GeoJSON file, the polygon in it with the closest
+ * number of vertices is used instead.
+ */
+@State(Scope.Benchmark)
+public class PolygonBenchmark {
+    // Number of query points, cycled through by the benchmarks
+    private static final int QUERIES = 1 << 16;
+    // Cells of the raster grid laid over the polygon
+    private static final int RASTER_CELLS = 1 << 16;
+
+    @Param({"16", "1024", "65536"})
+    public int vertices;
+
+    private Polygon polygon;
+    private PreparedPolygon prepared;
+    private PreparedPolygon indexed;
+    private PreparedPolygon rasterized;
+    private Point[] queries;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        String file = System.getProperty("bench.geojson");
+        if (file == null)
+            polygon = SyntheticData.polygon(vertices, SyntheticData.SEED);
+        else {
+            List<Polygon> polygons = SyntheticData.readPolygons(file);
+            for (Polygon candidate : polygons) {
+                if (polygon == null ||
+                        Math.abs(candidate.getSides().size() - vertices) <
+                        Math.abs(polygon.getSides().size() - vertices))
+                    polygon = candidate;
+            }
+            System.out.printf("%nUsing polygon with %d vertices from %s%n",
+                              polygon.getSides().size(), file);
+        }
+        queries = SyntheticData.queryPoints(polygon, QUERIES, SyntheticData.SEED);
+        prepared = new PreparedPolygon(polygon, false);
+        indexed = new PreparedPolygon(polygon, true);
+        rasterized = new PreparedPolygon(polygon, true, RASTER_CELLS);
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public boolean contains() {
+        next = (next + 1) & (QUERIES - 1);
+        return polygon.contains(queries[next]);
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public boolean containsPrepared() {
+        next = (next + 1) & (QUERIES - 1);
+        Point query = queries[next];
+        return prepared.contains(query.x, query.y);
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public boolean containsIndexed() {
+        next = (next + 1) & (QUERIES - 1);
+        Point query = queries[next];
+        return indexed.contains(query.x, query.y);
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public boolean containsRasterized() {
+        next = (next + 1) & (QUERIES - 1);
+        Point query = queries[next];
+        return rasterized.contains(query.x, query.y);
+    }
+}
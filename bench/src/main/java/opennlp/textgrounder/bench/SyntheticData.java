@@ -0,0 +1,169 @@
+package opennlp.textgrounder.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.sromku.polygon.Line;
+import com.sromku.polygon.Point;
+import com.sromku.polygon.Polygon;
+
+import scala.Tuple3;
+import scala.collection.JavaConversions;
+
+import opennlp.textgrounder.preprocess.DatedCorpusToDTM;
+
+/**
+ * Reproducible synthetic data for the benchmarks. Everything is generated
+ * from a fixed seed, so every run sees the same coordinates and polygons.
+ * Coordinates are (latitude, longitude) pairs in degrees.
+ */
+public class SyntheticData {
+    public static final long SEED = 20150101L;
+
+    // Number of distinct cities for the clustered data set, and the
+    // fraction of points placed exactly at a city's centroid, as geotags
+    // resolved to a place name are
+    private static final int CITIES = 500;
+    private static final double AT_CENTROID = 0.3;
+
+    // Number of distinct coordinates in the duplicate-heavy data set
+    private static final int DISTINCT = 1000;
+
+    /**
+     * Generate one of the named data sets: "uniform", "clustered" or
+     * "duplicates".
+     */
+    public static double[][] coordinates(String dataset, int n) {
+        if (dataset.equals("uniform"))
+            return uniform(n, SEED);
+        if (dataset.equals("clustered"))
+            return clustered(n, SEED);
+        if (dataset.equals("duplicates"))
+            return duplicateHeavy(n, SEED);
+        throw new IllegalArgumentException("Unknown data set: " + dataset);
+    }
+
+    /**
+     * Coordinates spread uniformly over latitude and longitude.
+     */
+    public static double[][] uniform(int n, long seed) {
+        Random random = new Random(seed);
+        double[][] points = new double[n][];
+        for (int i = 0; i < n; i++)
+            points[i] = new double[] {
+                random.nextDouble() * 180 - 90,
+                random.nextDouble() * 360 - 180 };
+        return points;
+    }
+
+    /**
+     * Coordinates clustered around city centroids, like geotagged tweets:
+     * city popularity follows Zipf's law, some points lie exactly on the
+     * centroid and the rest are scattered tightly around it.
+     */
+    public static double[][] clustered(int n, long seed) {
+        Random random = new Random(seed);
+        double[][] cities = new double[CITIES][];
+        double[] cumulative = new double[CITIES];
+        double total = 0;
+        for (int i = 0; i < CITIES; i++) {
+            cities[i] = new double[] {
+                random.nextDouble() * 110 - 50,
+                random.nextDouble() * 270 - 125 };
+            total += 1.0 / (i + 1);
+            cumulative[i] = total;
+        }
+        double[][] points = new double[n][];
+        for (int i = 0; i < n; i++) {
+            double[] city = cities[pick(cumulative, random.nextDouble() * total)];
+            if (random.nextDouble() < AT_CENTROID)
+                points[i] = city.clone();
+            else
+                points[i] = new double[] {
+                    city[0] + random.nextGaussian() * 0.05,
+                    city[1] + random.nextGaussian() * 0.05 };
+        }
+        return points;
+    }
+
+    /**
+     * Coordinates drawn from a small set of distinct values, so that most
+     * points have many exact duplicates.
+     */
+    public static double[][] duplicateHeavy(int n, long seed) {
+        double[][] distinct = uniform(DISTINCT, seed);
+        Random random = new Random(seed + 1);
+        double[][] points = new double[n][];
+        for (int i = 0; i < n; i++)
+            points[i] = distinct[random.nextInt(DISTINCT)].clone();
+        return points;
+    }
+
+    private static int pick(double[] cumulative, double value) {
+        int lo = 0, hi = cumulative.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (cumulative[mid] < value)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * A polygon with the given number of vertices, shaped like a region
+     * outline: a circle of radius 10 degrees around (0, 0) with a jagged
+     * radius, so that it is far from convex.
+     */
+    public static Polygon polygon(int vertices, long seed) {
+        Random random = new Random(seed);
+        Polygon.Builder builder = Polygon.Builder();
+        for (int i = 0; i < vertices; i++) {
+            double angle = 2 * Math.PI * i / vertices;
+            double radius = 10 * (0.5 + random.nextDouble() * 0.5);
+            builder.addVertex(new Point((float) (radius * Math.cos(angle)),
+                                        (float) (radius * Math.sin(angle))));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Read the polygons in a GeoJSON file, in the format read by
+     * {@link DatedCorpusToDTM}.
+     */
+    public static List<Polygon> readPolygons(String file) {
+        List<Polygon> polygons = new ArrayList<Polygon>();
+        for (Tuple3<Object, String, Polygon> region :
+                 JavaConversions.seqAsJavaList(
+                     DatedCorpusToDTM.read_json_polygons(file)))
+            polygons.add(region._3());
+        return polygons;
+    }
+
+    /**
+     * Points spread uniformly over the bounding box of a polygon, plus a
+     * margin, so that some fall inside and some outside.
+     */
+    public static Point[] queryPoints(Polygon polygon, int n, long seed) {
+        float xMin = Float.MAX_VALUE, xMax = -Float.MAX_VALUE;
+        float yMin = Float.MAX_VALUE, yMax = -Float.MAX_VALUE;
+        for (Line side : polygon.getSides()) {
+            Point p = side.getStart();
+            xMin = Math.min(xMin, p.x);
+            xMax = Math.max(xMax, p.x);
+            yMin = Math.min(yMin, p.y);
+            yMax = Math.max(yMax, p.y);
+        }
+        float xMargin = (xMax - xMin) * 0.05f;
+        float yMargin = (yMax - yMin) * 0.05f;
+        Random random = new Random(seed);
+        Point[] points = new Point[n];
+        for (int i = 0; i < n; i++)
+            points[i] = new Point(
+                xMin - xMargin + random.nextFloat() * (xMax - xMin + 2 * xMargin),
+                yMin - yMargin + random.nextFloat() * (yMax - yMin + 2 * yMargin));
+        return points;
+    }
+}
@@ -0,0 +1,229 @@
+package ags.utils;
+
+/**
+ * Approximate k-nearest-neighbour search over a kd-tree, for when a fixed
+ * cost per query matters more than always finding the true neighbours.
+ *
+ * Nodes are visited best-bin-first: a priority queue holds the nodes not
+ * yet searched, keyed by the distance from the query point to their
+ * limits, and the search always continues from the closest one. It stops
+ * once it has scanned the given number of leaves, or once no remaining
+ * node can be closer than the k-th point found divided by (1 + epsilon),
+ * so that each distance found is at most (1 + epsilon) times the true one.
+ * Distances are as computed by {@link KdTree#pointDist} (squared Euclidean
+ * distance by default, so epsilon bounds the ratio of squared distances).
+ * With no leaf limit and an epsilon of 0, the search is exact.
+ *
+ * {@link #isExact} reports whether the result was proven to be the true
+ * k nearest points, which is the case when every unvisited node was ruled
+ * out by its distance alone.
+ *
+ * A search object holds its own queue and result buffers, which are reused
+ * from one query to the next, so a query allocates nothing once the queue
+ * has grown to size. It is not thread-safe; use one per thread.
+ */
+public class ApproximateNearestSearch {
+    private final KdTree     root;
+    private final int        k;
+    private final int        maxLeaves;
+    private final double     slack;
+
+    private final double[][] resultPoints;
+    private final double[]   resultDistances;
+    private int              count;
+    private boolean          exact;
+    private int              leavesVisited;
+
+    // Min-heap of nodes still to search, keyed by distance to their limits
+    private KdTree[]         queue = new KdTree[64];
+    private double[]         queueDistances = new double[64];
+    private int              queueSize;
+
+    /**
+     * Construct a search for the k nearest points in the tree under the
+     * given root, scanning at most maxLeaves leaves per query (use
+     * Integer.MAX_VALUE for no limit) and accepting a result within a
+     * factor of (1 + epsilon) of the true distances.
+     */
+    public ApproximateNearestSearch(KdTree root, int k, int maxLeaves,
+            double epsilon) {
+        if (root.parent != null)
+            throw new IllegalArgumentException("Must search from the root");
+        if (k <= 0)
+            throw new IllegalArgumentException("k must be positive");
+        if (maxLeaves <= 0)
+            throw new IllegalArgumentException("Leaf limit must be positive");
+        if (!(epsilon >= 0))
+            throw new IllegalArgumentException("Epsilon must not be negative");
+        this.root = root;
+        this.k = k;
+        this.maxLeaves = maxLeaves;
+        this.slack = 1 + epsilon;
+        this.resultPoints = new double[k][];
+        this.resultDistances = new double[k];
+    }
+
+    /**
+     * Search for the points nearest to the given point. The tree must
+     * still hold its point data. The results can then be read with
+     * {@link #getPoint} and {@link #getDistance}, in order of increasing
+     * distance, until the next search.
+     *
+     * @return the number of points found, which is less than k only if
+     *   the tree holds fewer than k points or the leaf limit was reached
+     */
+    public int search(double[] point) {
+        KdTree.Instruments instruments = root.getInstruments();
+        if (instruments != null)
+            instruments.searches.incrementAndGet();
+        count = 0;
+        leavesVisited = 0;
+        exact = true;
+        queueSize = 0;
+        if (root.size() > 0)
+            push(root, root.pointRegionDist(point, root.minLimit,
+                                            root.maxLimit));
+
+        while (queueSize > 0) {
+            double bound = queueDistances[0];
+            if (count == k) {
+                // Nothing left can beat the worst point found
+                if (bound >= resultDistances[0])
+                    break;
+                // Something might, but not by more than the slack
+                if (bound * slack >= resultDistances[0]) {
+                    exact = false;
+                    break;
+                }
+            }
+            if (leavesVisited == maxLeaves) {
+                exact = false;
+                break;
+            }
+
+            // Descend from the closest node to a leaf, queueing the far
+            // side at each stem
+            KdTree node = pop();
+            while (node.getLeft() != null && node.getRight() != null) {
+                if (instruments != null)
+                    instruments.searchNodes.incrementAndGet();
+                KdTree near, far;
+                if (point[node.getSplitDimension()] <= node.getSplitValue()) {
+                    near = node.getLeft();
+                    far = node.getRight();
+                } else {
+                    near = node.getRight();
+                    far = node.getLeft();
+                }
+                if (near.size() == 0) {
+                    node = far;
+                    continue;
+                }
+                if (far.size() > 0)
+                    push(far, root.pointRegionDist(point, far.minLimit,
+                                                   far.maxLimit));
+                node = near;
+            }
+            if (instruments != null)
+                instruments.searchNodes.incrementAndGet();
+            count = node.scanLeaf(root, point, k, resultPoints,
+                                  resultDistances, count);
+            leavesVisited++;
+        }
+        // Drop the nodes left over, so as not to retain them
+        while (queueSize > 0)
+            queue[--queueSize] = null;
+        KdTree.sortHeap(resultDistances, resultPoints, count);
+        return count;
+    }
+
+    /**
+     * Get the number of points found by the last search.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Get the i-th nearest point found by the last search.
+     */
+    public double[] getPoint(int i) {
+        if (i >= count)
+            throw new IndexOutOfBoundsException("Only " + count + " points found");
+        return resultPoints[i];
+    }
+
+    /**
+     * Get the distance of the i-th nearest point found by the last search.
+     */
+    public double getDistance(int i) {
+        if (i >= count)
+            throw new IndexOutOfBoundsException("Only " + count + " points found");
+        return resultDistances[i];
+    }
+
+    /**
+     * Whether the last search was proven to have found the true k nearest
+     * points (or all points, if the tree holds fewer than k). If not, the
+     * result is only within the epsilon bound if the leaf limit was not
+     * reached.
+     */
+    public boolean isExact() {
+        return exact;
+    }
+
+    /**
+     * Get the number of leaves scanned by the last search.
+     */
+    public int getLeavesVisited() {
+        return leavesVisited;
+    }
+
+    private void push(KdTree node, double dist) {
+        if (queueSize == queue.length) {
+            KdTree[] newQueue = new KdTree[queueSize * 2];
+            double[] newDistances = new double[queueSize * 2];
+            System.arraycopy(queue, 0, newQueue, 0, queueSize);
+            System.arraycopy(queueDistances, 0, newDistances, 0, queueSize);
+            queue = newQueue;
+            queueDistances = newDistances;
+        }
+        int i = queueSize++;
+        while (i > 0) {
+            int parent = (i - 1) >> 1;
+            if (queueDistances[parent] <= dist)
+                break;
+            queue[i] = queue[parent];
+            queueDistances[i] = queueDistances[parent];
+            i = parent;
+        }
+        queue[i] = node;
+        queueDistances[i] = dist;
+    }
+
+    private KdTree pop() {
+        KdTree top = queue[0];
+        int size = --queueSize;
+        KdTree node = queue[size];
+        double dist = queueDistances[size];
+        queue[size] = null;
+        int i = 0;
+        int half = size >> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            if (child + 1 < size &&
+                    queueDistances[child + 1] < queueDistances[child])
+                child++;
+            if (dist <= queueDistances[child])
+                break;
+            queue[i] = queue[child];
+            queueDistances[i] = queueDistances[child];
+            i = child;
+        }
+        if (size > 0) {
+            queue[i] = node;
+            queueDistances[i] = dist;
+        }
+        return top;
+    }
+}
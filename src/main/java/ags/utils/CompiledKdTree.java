@@ -0,0 +1,446 @@
+package ags.utils;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * An immutable, array-backed form of a balanced {@link KdTree}.
+ *
+ * Nodes are addressed by integer id, assigned in pre-order starting with
+ * the root at 0, so the left child of a stem is always the next id and
+ * only the right child needs to be stored. Boundaries and limits of all
+ * nodes are packed into a single array, with a stride of four times the
+ * number of dimensions per node.
+ */
+public final class CompiledKdTree {
+    // Offsets (in units of dimensions) of the packed bounds of a node
+    private static final int MIN_BOUNDARY = 0;
+    private static final int MAX_BOUNDARY = 1;
+    private static final int MIN_LIMIT = 2;
+    private static final int MAX_LIMIT = 3;
+    private static final int BOUNDS_PER_DIM = 4;
+
+    private final int       dimensions;
+    private final int       nodeCount;
+    private final int       leafCount;
+
+    // Split dimension of each node, or -1 for leaves
+    private final int[]     splitDimension;
+    private final double[]  splitValue;
+    // Right child of each stem (the left child is the node after it),
+    // or -1 for leaves
+    private final int[]     right;
+    // Parent of each node, or -1 for the root
+    private final int[]     parent;
+    private final int[]     size;
+    private final double[]  bounds;
+    // Ids of the leaves, in pre-order
+    private final int[]     leaves;
+
+    CompiledKdTree(int dimensions, int[] splitDimension, double[] splitValue,
+            int[] right, int[] parent, int[] size, double[] bounds) {
+        this.dimensions = dimensions;
+        this.nodeCount = splitDimension.length;
+        this.splitDimension = splitDimension;
+        this.splitValue = splitValue;
+        this.right = right;
+        this.parent = parent;
+        this.size = size;
+        this.bounds = bounds;
+
+        int count = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            if (splitDimension[i] < 0) count++;
+        }
+        this.leafCount = count;
+        this.leaves = new int[count];
+        count = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            if (splitDimension[i] < 0) leaves[count++] = i;
+        }
+    }
+
+    /**
+     * Compile a tree, normally after {@link KdTree#balance()} has been
+     * called on it. The tree itself is not modified.
+     */
+    public static CompiledKdTree compile(KdTree root) {
+        int nodeCount = countNodes(root);
+        int dimensions = root.getDimensions();
+        int[] splitDimension = new int[nodeCount];
+        double[] splitValue = new double[nodeCount];
+        int[] right = new int[nodeCount];
+        int[] parent = new int[nodeCount];
+        int[] size = new int[nodeCount];
+        double[] bounds = new double[nodeCount * BOUNDS_PER_DIM * dimensions];
+
+        // Pre-order walk with an explicit stack of pending right children
+        KdTree[] stack = new KdTree[nodeCount];
+        int[] stackParent = new int[nodeCount];
+        int top = 0;
+        stack[top] = root;
+        stackParent[top++] = -1;
+        int id = 0;
+        while (top > 0) {
+            KdTree node = stack[--top];
+            int parentId = stackParent[top];
+            // Descend the left spine, numbering as we go
+            while (node != null) {
+                parent[id] = parentId;
+                size[id] = node.size();
+                int base = id * BOUNDS_PER_DIM * dimensions;
+                packBounds(bounds, base + MIN_BOUNDARY * dimensions,
+                    node.minBoundary, dimensions);
+                packBounds(bounds, base + MAX_BOUNDARY * dimensions,
+                    node.maxBoundary, dimensions);
+                packBounds(bounds, base + MIN_LIMIT * dimensions,
+                    node.minLimit, dimensions);
+                packBounds(bounds, base + MAX_LIMIT * dimensions,
+                    node.maxLimit, dimensions);
+                if (node.getLeft() == null || node.getRight() == null) {
+                    splitDimension[id] = -1;
+                    splitValue[id] = Double.NaN;
+                    right[id] = -1;
+                    id++;
+                    node = null;
+                } else {
+                    splitDimension[id] = node.getSplitDimension();
+                    splitValue[id] = node.getSplitValue();
+                    stack[top] = node.getRight();
+                    stackParent[top++] = id;
+                    parentId = id;
+                    id++;
+                    node = node.getLeft();
+                }
+            }
+        }
+
+        // Now fill in the right children, whose ids are only known once
+        // the left subtree has been numbered: the right child of a stem
+        // is the first node after it whose parent is that stem, other
+        // than the left child.
+        for (int i = 1; i < nodeCount; i++) {
+            int p = parent[i];
+            if (i != p + 1) right[p] = i;
+        }
+
+        return new CompiledKdTree(dimensions, splitDimension, splitValue,
+                                  right, parent, size, bounds);
+    }
+
+    /**
+     * Write the arrays making up the tree, for {@link KdTreeSnapshot}:
+     * split values and bounds first, then split dimensions, right
+     * children, parents and sizes.
+     */
+    void writeArrays(DataOutputStream out) throws IOException {
+        for (int i = 0; i < nodeCount; i++)
+            out.writeDouble(splitValue[i]);
+        for (int i = 0; i < bounds.length; i++)
+            out.writeDouble(bounds[i]);
+        int[][] intArrays = { splitDimension, right, parent, size };
+        for (int[] array : intArrays) {
+            for (int i = 0; i < nodeCount; i++)
+                out.writeInt(array[i]);
+        }
+    }
+
+    /**
+     * Number of bytes written by {@link #writeArrays}.
+     */
+    static long arraysByteSize(int dimensions, int nodeCount) {
+        return (long) nodeCount * (8 + 8 * BOUNDS_PER_DIM * dimensions + 4 * 4);
+    }
+
+    /**
+     * Read the arrays written by {@link #writeArrays} from the current
+     * position of the given buffer.
+     */
+    static CompiledKdTree readArrays(ByteBuffer in, int dimensions,
+            int nodeCount) {
+        double[] splitValue = new double[nodeCount];
+        double[] bounds = new double[nodeCount * BOUNDS_PER_DIM * dimensions];
+        int[] splitDimension = new int[nodeCount];
+        int[] right = new int[nodeCount];
+        int[] parent = new int[nodeCount];
+        int[] size = new int[nodeCount];
+
+        DoubleBuffer doubles = in.asDoubleBuffer();
+        doubles.get(splitValue);
+        doubles.get(bounds);
+        in.position(in.position() + 8 * (splitValue.length + bounds.length));
+        IntBuffer ints = in.asIntBuffer();
+        ints.get(splitDimension);
+        ints.get(right);
+        ints.get(parent);
+        ints.get(size);
+        in.position(in.position() + 4 * 4 * nodeCount);
+
+        return new CompiledKdTree(dimensions, splitDimension, splitValue,
+                                  right, parent, size, bounds);
+    }
+
+    private static int countNodes(KdTree root) {
+        int count = 0;
+        KdTree[] stack = new KdTree[64];
+        int top = 0;
+        stack[top++] = root;
+        while (top > 0) {
+            KdTree node = stack[--top];
+            count++;
+            if (node.getLeft() != null && node.getRight() != null) {
+                if (top + 2 > stack.length) {
+                    KdTree[] newStack = new KdTree[stack.length * 2];
+                    System.arraycopy(stack, 0, newStack, 0, top);
+                    stack = newStack;
+                }
+                stack[top++] = node.getRight();
+                stack[top++] = node.getLeft();
+            }
+        }
+        return count;
+    }
+
+    private static void packBounds(double[] bounds, int offset, double[] src,
+            int dimensions) {
+        // Nodes that never received a point have no limits
+        if (src == null) {
+            for (int i = 0; i < dimensions; i++)
+                bounds[offset + i] = Double.NaN;
+        } else {
+            System.arraycopy(src, 0, bounds, offset, dimensions);
+        }
+    }
+
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    /**
+     * Get the total number of nodes in the tree.
+     */
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getLeafCount() {
+        return leafCount;
+    }
+
+    /**
+     * Get the id of the leaf containing the given location.
+     */
+    public int getLeaf(double[] location) {
+        int node = 0;
+        int dim;
+        while ((dim = splitDimension[node]) >= 0) {
+            if (location[dim] <= splitValue[node])
+                node++;
+            else
+                node = right[node];
+        }
+        return node;
+    }
+
+    /**
+     * Get the id of the leaf containing the given point of a 2-dimensional
+     * tree.
+     */
+    public int getLeaf(double x, double y) {
+        checkTwoDimensional();
+        int node = 0;
+        int dim;
+        while ((dim = splitDimension[node]) >= 0) {
+            if ((dim == 0 ? x : y) <= splitValue[node])
+                node++;
+            else
+                node = right[node];
+        }
+        return node;
+    }
+
+    /**
+     * Find the leaves containing a batch of points of a 2-dimensional
+     * tree. The id of the leaf containing (xs[i], ys[i]) is stored in
+     * leafIds[i], for i from 'from' (inclusive) to 'to' (exclusive).
+     */
+    public void findLeaves(double[] xs, double[] ys, int[] leafIds,
+            int from, int to) {
+        checkTwoDimensional();
+        for (int i = from; i < to; i++) {
+            int node = 0;
+            int dim;
+            while ((dim = splitDimension[node]) >= 0) {
+                if ((dim == 0 ? xs[i] : ys[i]) <= splitValue[node])
+                    node++;
+                else
+                    node = right[node];
+            }
+            leafIds[i] = node;
+        }
+    }
+
+    /**
+     * Find the leaves containing all of a batch of points of a
+     * 2-dimensional tree. See {@link #findLeaves(double[], double[], int[],
+     * int, int)}.
+     */
+    public void findLeaves(double[] xs, double[] ys, int[] leafIds) {
+        findLeaves(xs, ys, leafIds, 0, xs.length);
+    }
+
+    /**
+     * Find the leaves containing a batch of points of a 2-dimensional
+     * tree, splitting the batch into chunks of the given size that are
+     * processed in parallel using the given pool.
+     */
+    public void findLeaves(double[] xs, double[] ys, int[] leafIds,
+            ForkJoinPool pool, int chunkSize) {
+        checkTwoDimensional();
+        pool.invoke(new FindLeavesTask(xs, ys, leafIds, 0, xs.length,
+                                       Math.max(1, chunkSize)));
+    }
+
+    private class FindLeavesTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final double[] xs, ys;
+        private final int[] leafIds;
+        private final int from, to, chunkSize;
+
+        FindLeavesTask(double[] xs, double[] ys, int[] leafIds, int from,
+                int to, int chunkSize) {
+            this.xs = xs;
+            this.ys = ys;
+            this.leafIds = leafIds;
+            this.from = from;
+            this.to = to;
+            this.chunkSize = chunkSize;
+        }
+
+        protected void compute() {
+            if (to - from <= chunkSize) {
+                findLeaves(xs, ys, leafIds, from, to);
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new FindLeavesTask(xs, ys, leafIds, from, mid,
+                                             chunkSize),
+                          new FindLeavesTask(xs, ys, leafIds, mid, to,
+                                             chunkSize));
+            }
+        }
+    }
+
+    private void checkTwoDimensional() {
+        if (dimensions != 2)
+            throw new IllegalStateException("Tree has " + dimensions +
+                " dimensions, not 2");
+    }
+
+    public boolean isLeaf(int node) {
+        return splitDimension[node] < 0;
+    }
+
+    /**
+     * Get the id of the parent of a node, or -1 for the root.
+     */
+    public int getParent(int node) {
+        return parent[node];
+    }
+
+    /**
+     * Get the id of the left child of a node, or -1 for a leaf.
+     */
+    public int getLeft(int node) {
+        return splitDimension[node] < 0 ? -1 : node + 1;
+    }
+
+    /**
+     * Get the id of the right child of a node, or -1 for a leaf.
+     */
+    public int getRight(int node) {
+        return right[node];
+    }
+
+    public int getSplitDimension(int node) {
+        return splitDimension[node];
+    }
+
+    public double getSplitValue(int node) {
+        return splitValue[node];
+    }
+
+    /**
+     * Get the number of points in a node.
+     */
+    public int size(int node) {
+        return size[node];
+    }
+
+    /**
+     * Get the ids of all nodes, in pre-order. Since ids are assigned in
+     * pre-order, this is simply 0 through {@link #getNodeCount()} - 1.
+     */
+    public int[] getNodes() {
+        int[] nodes = new int[nodeCount];
+        for (int i = 0; i < nodeCount; i++)
+            nodes[i] = i;
+        return nodes;
+    }
+
+    /**
+     * Get the ids of all leaves, in pre-order.
+     */
+    public int[] getLeaves() {
+        return leaves.clone();
+    }
+
+    public int getLeafAt(int index) {
+        return leaves[index];
+    }
+
+    public double getMinBoundary(int node, int dim) {
+        return bounds[(node * BOUNDS_PER_DIM + MIN_BOUNDARY) * dimensions + dim];
+    }
+
+    public double getMaxBoundary(int node, int dim) {
+        return bounds[(node * BOUNDS_PER_DIM + MAX_BOUNDARY) * dimensions + dim];
+    }
+
+    public double getMinLimit(int node, int dim) {
+        return bounds[(node * BOUNDS_PER_DIM + MIN_LIMIT) * dimensions + dim];
+    }
+
+    public double getMaxLimit(int node, int dim) {
+        return bounds[(node * BOUNDS_PER_DIM + MAX_LIMIT) * dimensions + dim];
+    }
+
+    /**
+     * Copy the boundaries of a node into the given arrays, each of which
+     * must hold at least {@link #getDimensions()} elements.
+     */
+    public void getBoundary(int node, double[] min, double[] max) {
+        int base = node * BOUNDS_PER_DIM * dimensions;
+        System.arraycopy(bounds, base + MIN_BOUNDARY * dimensions, min, 0,
+                         dimensions);
+        System.arraycopy(bounds, base + MAX_BOUNDARY * dimensions, max, 0,
+                         dimensions);
+    }
+
+    /**
+     * Copy the limits of a node into the given arrays, each of which
+     * must hold at least {@link #getDimensions()} elements.
+     */
+    public void getLimits(int node, double[] min, double[] max) {
+        int base = node * BOUNDS_PER_DIM * dimensions;
+        System.arraycopy(bounds, base + MIN_LIMIT * dimensions, min, 0,
+                         dimensions);
+        System.arraycopy(bounds, base + MAX_LIMIT * dimensions, max, 0,
+                         dimensions);
+    }
+}
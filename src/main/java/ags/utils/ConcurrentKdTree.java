@@ -0,0 +1,383 @@
+package ags.utils;
+
+import java.util.Arrays;
+
+/**
+ * A kd-tree that can be queried from any number of threads while points
+ * are being inserted into it.
+ *
+ * The tree is made of immutable nodes. Readers call {@link #snapshot()} to
+ * get the current version of the tree, which never changes and can be
+ * queried without locking. Writers copy the path from the root down to the
+ * leaf a point is inserted into, sharing all other subtrees with the
+ * previous version, and then publish the new root with a single volatile
+ * write. A leaf that overflows its bucket is split using the same split
+ * method as {@link KdTree}; unlike {@link KdTree#insert}, subtrees are not
+ * otherwise rebalanced, and the boundaries of the tree stay as they were
+ * when it was constructed (points outside them go into the nearest leaf
+ * along the edge).
+ */
+public final class ConcurrentKdTree {
+    /**
+     * An immutable node of the tree. Leaves hold their points; stems hold
+     * their split and children. Nodes have no parent pointers, since a
+     * subtree may be shared between versions; use
+     * {@link Snapshot#getPath} to walk up from a leaf.
+     */
+    public static final class Node {
+        private final int        splitDimension;
+        private final double     splitValue;
+        private final Node       left, right;
+        private final double[][] points;
+        private final int        size;
+        private final double[]   minLimit, maxLimit;
+        private final double[]   minBoundary, maxBoundary;
+
+        private Node(int splitDimension, double splitValue, Node left,
+                Node right, double[][] points, int size, double[] minLimit,
+                double[] maxLimit, double[] minBoundary, double[] maxBoundary) {
+            this.splitDimension = splitDimension;
+            this.splitValue = splitValue;
+            this.left = left;
+            this.right = right;
+            this.points = points;
+            this.size = size;
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+            this.minBoundary = minBoundary;
+            this.maxBoundary = maxBoundary;
+        }
+
+        public boolean isLeaf() {
+            return left == null;
+        }
+
+        public Node getLeft() {
+            return left;
+        }
+
+        public Node getRight() {
+            return right;
+        }
+
+        public int getSplitDimension() {
+            return splitDimension;
+        }
+
+        public double getSplitValue() {
+            return splitValue;
+        }
+
+        /**
+         * Get the number of points in this node.
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Get the i'th point of a leaf. The array must not be modified.
+         */
+        public double[] getPoint(int i) {
+            return points[i];
+        }
+
+        public double getMinLimit(int dim) {
+            return minLimit[dim];
+        }
+
+        public double getMaxLimit(int dim) {
+            return maxLimit[dim];
+        }
+
+        public double getMinBoundary(int dim) {
+            return minBoundary[dim];
+        }
+
+        public double getMaxBoundary(int dim) {
+            return maxBoundary[dim];
+        }
+    }
+
+    /**
+     * A version of the tree. Immutable, so safe to query from any thread.
+     */
+    public static final class Snapshot {
+        private final Node root;
+        private final long version;
+
+        private Snapshot(Node root, long version) {
+            this.root = root;
+            this.version = version;
+        }
+
+        public Node getRoot() {
+            return root;
+        }
+
+        /**
+         * Get the version number, which increases by one each time a new
+         * version is published.
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * Get the number of points in the tree.
+         */
+        public int size() {
+            return root.size;
+        }
+
+        public Node getLeaf(double[] location) {
+            Node node = root;
+            while (node.left != null) {
+                if (location[node.splitDimension] <= node.splitValue)
+                    node = node.left;
+                else
+                    node = node.right;
+            }
+            return node;
+        }
+
+        /**
+         * Get the leaf containing the given point of a 2-dimensional tree.
+         */
+        public Node getLeaf(double x, double y) {
+            if (root.minBoundary.length != 2)
+                throw new IllegalStateException("Tree has " +
+                    root.minBoundary.length + " dimensions, not 2");
+            Node node = root;
+            while (node.left != null) {
+                double value = node.splitDimension == 0 ? x : y;
+                if (value <= node.splitValue)
+                    node = node.left;
+                else
+                    node = node.right;
+            }
+            return node;
+        }
+
+        /**
+         * Store the nodes from the root down to the leaf containing the
+         * given point into the given array, which must be at least as long
+         * as the depth of the tree plus one.
+         *
+         * @return the number of nodes stored; the leaf is the last of them
+         */
+        public int getPath(double[] location, Node[] path) {
+            int depth = 0;
+            Node node = root;
+            path[depth++] = node;
+            while (node.left != null) {
+                if (location[node.splitDimension] <= node.splitValue)
+                    node = node.left;
+                else
+                    node = node.right;
+                path[depth++] = node;
+            }
+            return depth;
+        }
+    }
+
+    private final int                 dimensions;
+    private final int                 bucketSize;
+    private final KdTree.SplitMethod  splitMethod;
+    private final Object              writeLock = new Object();
+    private volatile Snapshot         current;
+
+    /**
+     * Construct a concurrent tree with the same structure and points as
+     * the given tree, which must not have had its data annihilated. The
+     * tree must not be weighted, since nodes here hold one array entry per
+     * point, as for {@link KdTree#insert}.
+     */
+    public ConcurrentKdTree(KdTree tree) {
+        if (tree.isWeighted())
+            throw new UnsupportedOperationException("Cannot insert into a weighted tree");
+        this.dimensions = tree.getDimensions();
+        this.bucketSize = tree.getBucketSize();
+        this.splitMethod = tree.getSplitMethod();
+        double[] minBoundary = tree.minBoundary;
+        double[] maxBoundary = tree.maxBoundary;
+        if (minBoundary == null) {
+            minBoundary = new double[dimensions];
+            maxBoundary = new double[dimensions];
+        }
+        this.current = new Snapshot(convert(tree, minBoundary.clone(),
+                                            maxBoundary.clone()), 0);
+    }
+
+    /**
+     * Get the current version of the tree. Never blocks.
+     */
+    public Snapshot snapshot() {
+        return current;
+    }
+
+    /**
+     * Insert a point and publish the resulting version of the tree.
+     */
+    public void insert(double[] location) {
+        synchronized (writeLock) {
+            Snapshot old = current;
+            current = new Snapshot(insert(old.root, location), old.version + 1);
+        }
+    }
+
+    /**
+     * Insert a batch of points, publishing a single new version of the
+     * tree once all of them have been inserted.
+     */
+    public void insertAll(double[][] locations, int count) {
+        synchronized (writeLock) {
+            Snapshot old = current;
+            Node root = old.root;
+            for (int i = 0; i < count; i++)
+                root = insert(root, locations[i]);
+            current = new Snapshot(root, old.version + 1);
+        }
+    }
+
+    /**
+     * Return a copy of the subtree under the given node with the point
+     * inserted, sharing all subtrees not on the path to its leaf.
+     */
+    private Node insert(Node node, double[] location) {
+        double[] minBoundary = node.minBoundary;
+        double[] maxBoundary = node.maxBoundary;
+        double[] minLimit;
+        double[] maxLimit;
+        if (node.size == 0) {
+            minLimit = location.clone();
+            maxLimit = location.clone();
+        } else {
+            minLimit = node.minLimit.clone();
+            maxLimit = node.maxLimit.clone();
+            extendLimits(minLimit, maxLimit, location);
+        }
+
+        if (node.left == null) {
+            double[][] points = append(node, location);
+            int size = node.size + 1;
+            // A leaf with no width can't be split (KdTree leaves it as an
+            // overfull leaf), so unless the point widens it, just add the
+            // point rather than trying to split it again
+            if (size > bucketSize && !isSingularAt(node, location))
+                return split(Arrays.copyOf(points, size), minBoundary,
+                             maxBoundary);
+            return new Node(0, 0, null, null, points, size,
+                            minLimit, maxLimit, minBoundary, maxBoundary);
+        }
+
+        Node left = node.left;
+        Node right = node.right;
+        if (location[node.splitDimension] <= node.splitValue)
+            left = insert(left, location);
+        else
+            right = insert(right, location);
+        return new Node(node.splitDimension, node.splitValue, left, right,
+                        null, node.size + 1, minLimit, maxLimit, minBoundary,
+                        maxBoundary);
+    }
+
+    /**
+     * Return an array holding the points of a leaf followed by the given
+     * point. If the leaf's array has room and the slot after its points
+     * has not been claimed by another version, the point is stored there
+     * and the array is shared, since versions only read their own points;
+     * otherwise the points are copied into a larger array. This keeps
+     * repeated inserts into a leaf that can't be split (e.g. of many
+     * points at the same location) from copying the whole leaf each time.
+     */
+    private static double[][] append(Node leaf, double[] location) {
+        double[][] points = leaf.points;
+        int size = leaf.size;
+        if (size >= points.length || points[size] != null) {
+            double[][] grown = new double[Math.max(4, size * 2)][];
+            System.arraycopy(points, 0, grown, 0, size);
+            points = grown;
+        }
+        points[size] = location;
+        return points;
+    }
+
+    /**
+     * Whether a leaf has no width in any dimension and the given point
+     * lies at its single location. NaN counts as equal to itself, since
+     * KdTree takes a NaN width as zero and so can't split on it either.
+     */
+    private static boolean isSingularAt(Node leaf, double[] location) {
+        if (leaf.size == 0)
+            return false;
+        for (int i = 0; i < location.length; i++) {
+            if (!(same(leaf.minLimit[i], leaf.maxLimit[i]) &&
+                  same(leaf.minLimit[i], location[i])))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean same(double a, double b) {
+        return a == b || (Double.isNaN(a) && Double.isNaN(b));
+    }
+
+    /**
+     * Extend limits to include a point, treating NaN as KdTree does.
+     */
+    private static void extendLimits(double[] minLimit, double[] maxLimit,
+            double[] location) {
+        for (int i = 0; i < minLimit.length; i++) {
+            if (Double.isNaN(location[i])) {
+                minLimit[i] = Double.NaN;
+                maxLimit[i] = Double.NaN;
+            }
+            else if (minLimit[i] > location[i])
+                minLimit[i] = location[i];
+            else if (maxLimit[i] < location[i])
+                maxLimit[i] = location[i];
+        }
+    }
+
+    /**
+     * Build a subtree over the points of an overflowing leaf, using the
+     * split logic of KdTree, within the given boundaries.
+     */
+    private Node split(double[][] points, double[] minBoundary,
+            double[] maxBoundary) {
+        KdTree tree = new KdTree(dimensions, bucketSize, splitMethod);
+        for (double[] point : points)
+            tree.addPoint(point);
+        tree.balance();
+        return convert(tree, minBoundary, maxBoundary);
+    }
+
+    /**
+     * Convert a KdTree node into an immutable node, with the given
+     * boundaries (those of its descendants follow from the splits).
+     */
+    private static Node convert(KdTree node, double[] minBoundary,
+            double[] maxBoundary) {
+        double[] minLimit = node.minLimit == null ? null : node.minLimit.clone();
+        double[] maxLimit = node.maxLimit == null ? null : node.maxLimit.clone();
+        KdTree left = node.getLeft();
+        KdTree right = node.getRight();
+        if (left == null || right == null) {
+            return new Node(0, 0, null, null, node.getLeafLocations(),
+                            node.size(), minLimit, maxLimit, minBoundary,
+                            maxBoundary);
+        }
+        int dim = node.getSplitDimension();
+        double split = node.getSplitValue();
+        double[] leftMax = maxBoundary.clone();
+        leftMax[dim] = split;
+        double[] rightMin = minBoundary.clone();
+        rightMin[dim] = split;
+        return new Node(dim, split,
+                        convert(left, minBoundary, leftMax),
+                        convert(right, rightMin, maxBoundary),
+                        null, node.size(), minLimit, maxLimit, minBoundary,
+                        maxBoundary);
+    }
+}
@@ -0,0 +1,451 @@
+package ags.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Builds a kd-tree over more points than fit in memory, keeping them in
+ * spill files on disk.
+ *
+ * Points passed to {@link #add} are appended to a spill file for the root.
+ * {@link #build} then splits the tree top-down: each node too large to
+ * hold in memory has its split chosen by streaming its spill file (an
+ * external sort of the split coordinate for the median and max-margin
+ * methods), and its points are partitioned into one spill file per child.
+ * Once a node holds no more than the in-memory limit, its points are read
+ * back and its subtree is built in memory as {@link KdTree#balance()}
+ * would. All file I/O is sequential, through NIO channels and direct
+ * buffers.
+ *
+ * The resulting tree has the same splits, boundaries and sizes as if all
+ * points had been added to it and balanced, but holds no point data, as
+ * after {@link KdTree#annihilateData()}. Heap use is bounded by the
+ * in-memory limit, and disk use by about twice the size of the data.
+ */
+public class ExternalKdTreeBuilder implements Closeable {
+    // Size of the buffer for reading or writing each spill file
+    private static final int BUFFER_BYTES = 1 << 20;
+    // Smallest buffer for each run when merging sorted runs
+    private static final int MIN_RUN_BUFFER_BYTES = 1 << 12;
+
+    private final KdTree     root;
+    private final int        dimensions;
+    private final File       spillDir;
+    private final int        memoryPoints;
+    private final List<File> spills = new ArrayList<File>();
+
+    private File             rootFile;
+    private SpillWriter      rootWriter;
+
+    /**
+     * Construct a builder for the given root, which must be newly
+     * constructed and determines the bucket size and split method. Spill
+     * files are created in the given directory (or the default temporary
+     * directory if null). Subtrees of at most the given number of points
+     * are built in memory.
+     */
+    public ExternalKdTreeBuilder(KdTree root, File spillDir, int memoryPoints)
+            throws IOException {
+        if (root.parent != null || root.getLeft() != null || root.size() != 0)
+            throw new IllegalStateException("Can only build into an empty root");
+        if (memoryPoints < 2)
+            throw new IllegalArgumentException("Must hold at least 2 points in memory");
+        this.root = root;
+        this.dimensions = root.getDimensions();
+        this.spillDir = spillDir;
+        this.memoryPoints = memoryPoints;
+        this.rootFile = createSpill();
+        this.rootWriter = new SpillWriter(rootFile, dimensions, Long.MAX_VALUE);
+    }
+
+    /**
+     * Add a point to the tree, writing it to disk.
+     */
+    public void add(double[] location) throws IOException {
+        if (rootWriter == null)
+            throw new IllegalStateException("Tree has already been built");
+        if (root.size() == Integer.MAX_VALUE)
+            throw new IllegalStateException("Too many points for one tree");
+        rootWriter.write(location);
+        root.countInto(root, location);
+    }
+
+    /**
+     * Build the tree from the points added, deleting the spill files as
+     * they are used up.
+     */
+    public void build() throws IOException {
+        rootWriter.close();
+        rootWriter = null;
+        if (root.minLimit != null) {
+            // As addPoint() does, make the root's boundaries its limits
+            root.minBoundary = root.minLimit.clone();
+            root.maxBoundary = root.maxLimit.clone();
+        }
+        File file = rootFile;
+        rootFile = null;
+        buildNode(root, file);
+    }
+
+    private void buildNode(KdTree node, File file) throws IOException {
+        int count = node.size();
+        if (count <= memoryPoints) {
+            double[][] points = new double[count][];
+            SpillReader reader = new SpillReader(file, dimensions, BUFFER_BYTES);
+            try {
+                for (int i = 0; i < count; i++) {
+                    points[i] = new double[dimensions];
+                    reader.read(points[i]);
+                }
+            } finally {
+                reader.close();
+            }
+            deleteSpill(file);
+            root.splitLeaf(node, points, count);
+            node.annihilateData();
+            return;
+        }
+
+        if (!root.chooseSplitDimension(node)) {
+            deleteSpill(file);
+            return;
+        }
+        int dim = node.getSplitDimension();
+        double splitValue;
+        switch (root.getSplitMethod()) {
+        case MEDIAN:
+            splitValue = medianSplit(file, count, dim);
+            break;
+        case MAX_MARGIN:
+            splitValue = maxMarginSplit(file, count, dim);
+            break;
+        default:
+            splitValue = (node.minLimit[dim] + node.maxLimit[dim]) * 0.5;
+        }
+        root.splitAt(node, splitValue);
+
+        // Partition the points into a spill file for each child
+        KdTree left = node.getLeft();
+        KdTree right = node.getRight();
+        double split = node.getSplitValue();
+        File leftFile = createSpill();
+        File rightFile = createSpill();
+        SpillReader reader = new SpillReader(file, dimensions, BUFFER_BYTES);
+        SpillWriter leftWriter = new SpillWriter(leftFile, dimensions, count);
+        SpillWriter rightWriter = new SpillWriter(rightFile, dimensions, count);
+        try {
+            double[] location = new double[dimensions];
+            for (int i = 0; i < count; i++) {
+                reader.read(location);
+                if (location[dim] > split) {
+                    rightWriter.write(location);
+                    root.countInto(right, location);
+                } else {
+                    leftWriter.write(location);
+                    root.countInto(left, location);
+                }
+            }
+        } finally {
+            reader.close();
+            leftWriter.close();
+            rightWriter.close();
+        }
+        deleteSpill(file);
+        if (left.size() == 0 || right.size() == 0) {
+            // As in memory, a split that divides nothing is undone
+            deleteSpill(leftFile);
+            deleteSpill(rightFile);
+            root.unsplit(node);
+            return;
+        }
+
+        buildNode(left, leftFile);
+        buildNode(right, rightFile);
+    }
+
+    /**
+     * Compute the median of the given coordinate of the points in a spill
+     * file, exactly as {@link KdTree#median} does in memory.
+     */
+    private double medianSplit(File file, int count, int dim)
+            throws IOException {
+        int k = count / 2;
+        SortedColumn column = new SortedColumn(file, count, dim);
+        try {
+            double lower = 0;
+            for (int i = 0; i < k; i++)
+                lower = column.next();
+            double value = column.next();
+            return count % 2 == 1 ? value : (value + lower) / 2;
+        } finally {
+            column.close();
+        }
+    }
+
+    /**
+     * Find the split across the widest gap in the given coordinate of the
+     * points in a spill file, exactly as {@link KdTree#maxMarginSplit}
+     * does in memory.
+     */
+    private double maxMarginSplit(File file, int count, int dim)
+            throws IOException {
+        SortedColumn column = new SortedColumn(file, count, dim);
+        try {
+            double maxMargin = 0.0;
+            double splitValue = Double.NaN;
+            double previous = column.next();
+            for (int i = 1; i < count; i++) {
+                double value = column.next();
+                double delta = value - previous;
+                if (delta > maxMargin) {
+                    maxMargin = delta;
+                    splitValue = previous + 0.5 * delta;
+                }
+                previous = value;
+            }
+            return splitValue;
+        } finally {
+            column.close();
+        }
+    }
+
+    /**
+     * Delete any remaining spill files.
+     */
+    public void close() throws IOException {
+        if (rootWriter != null) {
+            rootWriter.close();
+            rootWriter = null;
+        }
+        for (File file : new ArrayList<File>(spills))
+            deleteSpill(file);
+    }
+
+    private File createSpill() throws IOException {
+        File file = File.createTempFile("kdtree", ".spill", spillDir);
+        spills.add(file);
+        return file;
+    }
+
+    private void deleteSpill(File file) {
+        spills.remove(file);
+        file.delete();
+    }
+
+    /**
+     * One coordinate of the points in a spill file, in ascending order
+     * (that of Arrays.sort()). Sorted runs that fit in memory are written
+     * to their own spill files and then merged.
+     */
+    private class SortedColumn implements Closeable {
+        private final SpillReader[] runs;
+        private final double[]      heads;
+        // Indices into runs, as a min-heap on heads
+        private final int[]         heap;
+        private int                 heapSize;
+
+        SortedColumn(File file, int count, int dim) throws IOException {
+            int numRuns = (int) ((count + (long) memoryPoints - 1) / memoryPoints);
+            File[] runFiles = new File[numRuns];
+            double[] values = new double[Math.min(count, memoryPoints)];
+            double[] location = new double[dimensions];
+            SpillReader reader = new SpillReader(file, dimensions, BUFFER_BYTES);
+            try {
+                for (int r = 0; r < numRuns; r++) {
+                    int n = Math.min(memoryPoints, count - r * memoryPoints);
+                    for (int i = 0; i < n; i++) {
+                        reader.read(location);
+                        values[i] = location[dim];
+                    }
+                    Arrays.sort(values, 0, n);
+                    runFiles[r] = createSpill();
+                    SpillWriter writer = new SpillWriter(runFiles[r], 1, n);
+                    try {
+                        for (int i = 0; i < n; i++)
+                            writer.write(values[i]);
+                    } finally {
+                        writer.close();
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+
+            // Split the memory between the runs while merging
+            int bufferBytes = Math.max(MIN_RUN_BUFFER_BYTES,
+                Math.min(BUFFER_BYTES, memoryPoints / numRuns * 8));
+            runs = new SpillReader[numRuns];
+            heads = new double[numRuns];
+            heap = new int[numRuns];
+            for (int r = 0; r < numRuns; r++) {
+                runs[r] = new SpillReader(runFiles[r], 1, bufferBytes);
+                if (runs[r].hasNext()) {
+                    heads[r] = runs[r].readDouble();
+                    heap[heapSize++] = r;
+                    siftUp(heapSize - 1);
+                }
+            }
+        }
+
+        double next() throws IOException {
+            int r = heap[0];
+            double value = heads[r];
+            if (runs[r].hasNext()) {
+                heads[r] = runs[r].readDouble();
+            } else {
+                heap[0] = heap[--heapSize];
+            }
+            siftDown(0);
+            return value;
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) >> 1;
+                if (Double.compare(heads[heap[parent]], heads[heap[i]]) <= 0)
+                    break;
+                swap(parent, i);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= heapSize)
+                    break;
+                if (child + 1 < heapSize &&
+                        Double.compare(heads[heap[child + 1]],
+                                       heads[heap[child]]) < 0)
+                    child++;
+                if (Double.compare(heads[heap[i]], heads[heap[child]]) <= 0)
+                    break;
+                swap(i, child);
+                i = child;
+            }
+        }
+
+        private void swap(int i, int j) {
+            int t = heap[i];
+            heap[i] = heap[j];
+            heap[j] = t;
+        }
+
+        public void close() throws IOException {
+            for (SpillReader run : runs) {
+                run.close();
+                deleteSpill(run.file);
+            }
+        }
+    }
+
+    /**
+     * Writes fixed-size records of doubles to a spill file.
+     */
+    private static class SpillWriter implements Closeable {
+        private final FileOutputStream out;
+        private final FileChannel      channel;
+        private final ByteBuffer       buffer;
+        private final int              recordBytes;
+
+        SpillWriter(File file, int dimensions, long maxRecords)
+                throws IOException {
+            out = new FileOutputStream(file);
+            channel = out.getChannel();
+            recordBytes = 8 * dimensions;
+            // No bigger than the whole file needs
+            long records = Math.max(1, Math.min(maxRecords,
+                BUFFER_BYTES / recordBytes));
+            buffer = ByteBuffer.allocateDirect((int) records * recordBytes);
+        }
+
+        void write(double[] location) throws IOException {
+            if (buffer.remaining() < recordBytes)
+                flush();
+            for (int i = 0; i < location.length; i++)
+                buffer.putDouble(location[i]);
+        }
+
+        void write(double value) throws IOException {
+            if (buffer.remaining() < 8)
+                flush();
+            buffer.putDouble(value);
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            buffer.clear();
+        }
+
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Reads fixed-size records of doubles from a spill file.
+     */
+    private static class SpillReader implements Closeable {
+        final File                     file;
+        private final FileInputStream  in;
+        private final FileChannel      channel;
+        private final ByteBuffer       buffer;
+        private final int              recordBytes;
+
+        SpillReader(File file, int dimensions, int bufferBytes)
+                throws IOException {
+            this.file = file;
+            in = new FileInputStream(file);
+            channel = in.getChannel();
+            recordBytes = 8 * dimensions;
+            // No bigger than the whole file needs
+            long size = Math.min(bufferBytes, file.length());
+            buffer = ByteBuffer.allocateDirect(
+                (int) Math.max(recordBytes, size / recordBytes * recordBytes));
+            buffer.flip();
+        }
+
+        boolean hasNext() throws IOException {
+            if (buffer.remaining() >= recordBytes)
+                return true;
+            buffer.compact();
+            while (buffer.position() < recordBytes) {
+                if (channel.read(buffer) < 0)
+                    break;
+            }
+            buffer.flip();
+            return buffer.remaining() >= recordBytes;
+        }
+
+        void read(double[] location) throws IOException {
+            if (!hasNext())
+                throw new IOException("Spill file " + file + " ended early");
+            for (int i = 0; i < location.length; i++)
+                location[i] = buffer.getDouble();
+        }
+
+        double readDouble() throws IOException {
+            if (!hasNext())
+                throw new IOException("Spill file " + file + " ended early");
+            return buffer.getDouble();
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
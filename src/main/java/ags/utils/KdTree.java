@@ -21,11 +21,14 @@
 package ags.utils;
 
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * An efficient well-optimized kd-tree
@@ -36,6 +39,28 @@ public class KdTree {
     // split method enum
     public enum SplitMethod { HALFWAY, MEDIAN, MAX_MARGIN }
 
+    // What to do after a Visitor has visited a node
+    public enum VisitResult { CONTINUE, SKIP_SUBTREE, TERMINATE }
+
+    /**
+     * Callback for {@link #walk}, visiting nodes in pre-order. Returning
+     * SKIP_SUBTREE skips the nodes under the one visited, e.g. if its size
+     * or bounds show that none of them are of interest; TERMINATE ends
+     * the walk.
+     */
+    public interface Visitor {
+        VisitResult visit(KdTree node);
+    }
+
+    /**
+     * Callback for {@link #rangeQuery(double[], double[], int, RangeVisitor)},
+     * visiting the nodes that overlap a box, and told whether each node's
+     * boundary lies entirely inside it. Returning TERMINATE ends the query.
+     */
+    public interface RangeVisitor {
+        VisitResult visit(KdTree node, boolean contained);
+    }
+
     // All types
     private final int                  dimensions;
     public final KdTree                parent;
@@ -43,8 +68,29 @@ public class KdTree {
     private SplitMethod                splitMethod;
 
     // Leaf only
+    // //
+    // The points of a leaf are locations[locationOffset] through
+    // locations[locationOffset + locationCount - 1]. Building the tree
+    // partitions the root's array in place, so all leaves share it.
     private double[][]                 locations;
+    private int                        locationOffset;
     private int                        locationCount;
+    // In a weighted tree, the weight of each point, parallel to locations;
+    // otherwise null
+    private int[]                      weights;
+    private boolean                    weighted;
+    // Whether locations belongs to this leaf alone, rather than being
+    // shared with the rest of the tree, so that points can be appended
+    private boolean                    ownsLocations;
+    // Number of points when this node was last built, for deciding
+    // when to rebuild it after inserting points
+    private int                        builtSize;
+
+    // All types
+    // //
+    // Total weight of the points in the node, which is its size. Unless
+    // the tree is weighted, this is the same as locationCount.
+    private int                        weight;
 
     // Stem only
     private KdTree                     left, right;
@@ -64,6 +110,34 @@ public class KdTree {
     public double[]                    minBoundary, maxBoundary;
     private boolean                    singularity;
 
+    // Root only, during balance(): scratch space parallel to locations
+    // for split selection, and for their weights in a weighted tree
+    private double[]                   splitScratch;
+    private int[]                      weightScratch;
+
+    // Root only, while adding points to a weighted tree: the index in
+    // locations of each distinct point
+    private HashMap<Coordinate, Integer> pointIndex;
+
+    // Id of this node, as assigned by assignIds(), and the tables it
+    // indexes, shared by all nodes numbered together; null until ids
+    // are assigned, and dropped from the root when they become invalid
+    private int                        id = -1;
+    private IdTables                   idTables;
+
+    // Root only: time taken by the last balance(), and the counters kept
+    // while instrumented (see setInstrumented()), or null
+    private long                       balanceNanos;
+    private Instruments                instruments;
+
+    // Root only: the array of points shared by the leaves after balancing,
+    // and its coordinates in columns for batch distance computation, built
+    // on the first search. Only used if pointDist() is not overridden.
+    private final boolean              defaultMetric;
+    private double[][]                 sharedLocations;
+    private int                        sharedCount;
+    private volatile PointColumns      pointColumns;
+
     /**
      * Construct a KdTree with a given number of dimensions and a limit on
      * maxiumum size (after which it throws away old points)
@@ -76,10 +150,12 @@ public class KdTree {
         // Init as leaf
         this.locations = new double[bucketSize][];
         this.locationCount = 0;
+        this.ownsLocations = true;
         this.singularity = true;
 
         // Init as root
         this.parent = null;
+        this.defaultMetric = PointColumns.usesDefaultMetric(getClass());
     }
 
     /**
@@ -90,29 +166,72 @@ public class KdTree {
         this.bucketSize = parent.bucketSize;
         this.splitMethod = parent.splitMethod;
 
-        // Init as leaf
-        this.locations = new double[Math.max(bucketSize, parent.locationCount)][];
+        // Init as leaf, sharing the parent's points; the range is set
+        // when the parent is split
+        this.locations = parent.locations;
+        this.weights = parent.weights;
+        this.weighted = parent.weighted;
         this.locationCount = 0;
+        this.ownsLocations = false;
         this.singularity = true;
 
         // Init as non-root
         this.parent = parent;
+        this.defaultMetric = false;
     }
 
     /**
-     * Get the number of points in the tree
+     * Get the number of points in the tree, or their total weight in a
+     * weighted tree
      */
     public int size() {
-        return locationCount;
+        return weight;
+    }
+
+    /**
+     * Whether points have been added with weights, so that duplicates are
+     * collapsed. See {@link #addPoint(double[], int)}.
+     */
+    public boolean isWeighted() {
+        return weighted;
     }
 
     public KdTree getLeaf(double[] location) {
-        if (left == null || right == null)
-            return this;
-        else if (location[splitDimension] <= splitValue)
-            return left.getLeaf(location);
-        else
-            return right.getLeaf(location);
+        KdTree node = this;
+        int visited = 1;
+        while (node.left != null && node.right != null) {
+            if (location[node.splitDimension] <= node.splitValue)
+                node = node.left;
+            else
+                node = node.right;
+            visited++;
+        }
+        if (instruments != null)
+            instruments.countLookup(visited);
+        return node;
+    }
+
+    /**
+     * Get the leaf containing the given point of a 2-dimensional tree,
+     * without needing to allocate an array for it.
+     */
+    public KdTree getLeaf(double x, double y) {
+        if (dimensions != 2)
+            throw new IllegalStateException("Tree has " + dimensions +
+                " dimensions, not 2");
+        KdTree node = this;
+        int visited = 1;
+        while (node.left != null && node.right != null) {
+            double value = node.splitDimension == 0 ? x : y;
+            if (value <= node.splitValue)
+                node = node.left;
+            else
+                node = node.right;
+            visited++;
+        }
+        if (instruments != null)
+            instruments.countLookup(visited);
+        return node;
     }
 
     public KdTree getLeft() {
@@ -123,10 +242,180 @@ public class KdTree {
       return right;
     }
 
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    public int getBucketSize() {
+        return bucketSize;
+    }
+
+    public SplitMethod getSplitMethod() {
+        return splitMethod;
+    }
+
+    /**
+     * Get the dimension this node is split on. Only meaningful for stems.
+     */
+    public int getSplitDimension() {
+        return splitDimension;
+    }
+
+    /**
+     * Get the value this node is split at. Only meaningful for stems.
+     */
+    public double getSplitValue() {
+        return splitValue;
+    }
+
+    /**
+     * Turn instrumentation on or off. While on, the time spent choosing
+     * splits and partitioning points is recorded when balancing, and the
+     * nodes visited are counted for lookups and searches from this node,
+     * which must be the root. While off, the only cost is a null check per
+     * lookup or per node searched. Turning it on resets the counters.
+     */
+    public void setInstrumented(boolean instrumented) {
+        if (parent != null)
+            throw new IllegalStateException("Only the root can be instrumented");
+        instruments = instrumented ? new Instruments() : null;
+    }
+
+    public boolean isInstrumented() {
+        return instruments != null;
+    }
+
+    /**
+     * Get the wall-clock time taken by the last call to balance() on this
+     * root, in nanoseconds.
+     */
+    public long getBalanceNanos() {
+        return balanceNanos;
+    }
+
+    /**
+     * Compute statistics on the shape of the tree under this node, along
+     * with any build timings and query counters. See {@link KdTreeStats}.
+     */
+    public KdTreeStats getStats() {
+        return KdTreeStats.compute(this);
+    }
+
+    /**
+     * Counters kept on the root while instrumented. Atomic, so that
+     * parallel builds and concurrent lookups are counted correctly.
+     */
+    static final class Instruments {
+        final AtomicLong selectNanos = new AtomicLong();
+        final AtomicLong partitionNanos = new AtomicLong();
+        final AtomicLong lookups = new AtomicLong();
+        final AtomicLong lookupNodes = new AtomicLong();
+        final AtomicLong searches = new AtomicLong();
+        final AtomicLong searchNodes = new AtomicLong();
+
+        void countSplit(long select, long partition) {
+            selectNanos.addAndGet(select);
+            partitionNanos.addAndGet(partition);
+        }
+
+        void countLookup(int visited) {
+            lookups.incrementAndGet();
+            lookupNodes.addAndGet(visited);
+        }
+    }
+
+    Instruments getInstruments() {
+        return instruments;
+    }
+
+    // Rough sizes for estimating memory use, assuming a 64-bit JVM with
+    // compressed references
+    private static final int OBJECT_HEADER_BYTES = 16;
+    private static final int REFERENCE_BYTES = 4;
+    private static final int NODE_BYTES = 136;
+
+    private static long doubleArrayBytes(double[] array) {
+        return array == null ? 0 : OBJECT_HEADER_BYTES + 8L * array.length;
+    }
+
+    /**
+     * Estimate the bytes retained by this node alone: the node, its
+     * bounds, its points if it is a leaf, and any id tables.
+     */
+    long estimateBytes() {
+        long bytes = NODE_BYTES + doubleArrayBytes(minLimit) +
+            doubleArrayBytes(maxLimit) + doubleArrayBytes(minBoundary) +
+            doubleArrayBytes(maxBoundary);
+        if (isLeaf() && locations != null) {
+            // Each point and its slot in the (possibly shared) array
+            bytes += locationCount * (REFERENCE_BYTES + OBJECT_HEADER_BYTES +
+                                      8L * dimensions);
+            if (ownsLocations)
+                bytes += OBJECT_HEADER_BYTES +
+                    (long) REFERENCE_BYTES * (locations.length - locationCount);
+        }
+        PointColumns columns = pointColumns;
+        if (columns != null)
+            bytes += columns.estimateBytes();
+        if (parent == null && idTables != null)
+            bytes += idTables.estimateBytes();
+        return bytes;
+    }
+
+    /**
+     * Produce an immutable, array-backed copy of the tree rooted here,
+     * normally after calling {@link #balance()}. See {@link CompiledKdTree}.
+     */
+    public CompiledKdTree compile() {
+        return CompiledKdTree.compile(this);
+    }
+
+    /**
+     * Rebuild the structure of a compiled tree under this root, which must
+     * be newly constructed. Sizes, splits, limits and boundaries are
+     * restored, but there is no point data, just as after
+     * {@link #annihilateData()}. This is used to load a tree saved with
+     * {@link KdTreeSnapshot}.
+     */
+    public void restore(CompiledKdTree compiled) {
+        if (parent != null || left != null || weight != 0)
+            throw new IllegalStateException("Can only restore into an empty root");
+        if (compiled.getDimensions() != dimensions)
+            throw new IllegalArgumentException("Compiled tree has " +
+                compiled.getDimensions() + " dimensions, not " + dimensions);
+        locations = null;
+        restoreNode(this, compiled, 0);
+    }
+
+    private void restoreNode(KdTree node, CompiledKdTree compiled, int id) {
+        node.locationCount = compiled.size(id);
+        node.weight = node.locationCount;
+        node.minBoundary = new double[dimensions];
+        node.maxBoundary = new double[dimensions];
+        compiled.getBoundary(id, node.minBoundary, node.maxBoundary);
+        if (node.locationCount > 0) {
+            node.minLimit = new double[dimensions];
+            node.maxLimit = new double[dimensions];
+            compiled.getLimits(id, node.minLimit, node.maxLimit);
+        }
+        if (!compiled.isLeaf(id)) {
+            node.splitDimension = compiled.getSplitDimension(id);
+            node.splitValue = compiled.getSplitValue(id);
+            node.left = new ChildNode(node, false);
+            node.right = new ChildNode(node, true);
+            restoreNode(node.left, compiled, compiled.getLeft(id));
+            restoreNode(node.right, compiled, compiled.getRight(id));
+        }
+    }
+
     /**
      * Add a point and associated value to the tree
      */
     public void addPoint(double[] location) {
+        if (weights != null) {
+            addPoint(location, 1);
+            return;
+        }
         if (locationCount >= locations.length) {
             double[][] newLocations = new double[locations.length * 2][];
             System.arraycopy(locations, 0, newLocations, 0, locationCount);
@@ -135,6 +424,7 @@ public class KdTree {
 
         locations[locationCount] = location;
         locationCount++;
+        weight++;
         extendBounds(location);
         // We are the root node, so set the boundaries to be the same
         // as the limits.
@@ -146,6 +436,299 @@ public class KdTree {
         System.arraycopy(maxLimit, 0, maxBoundary, 0, dimensions);
     }
 
+    /**
+     * Add a point with the given weight, as if it had been added that many
+     * times. This makes the tree weighted: identical points (down to the
+     * bit) are then collapsed into a single entry whose weight is their
+     * total, and sizes are total weights. Splits are chosen as if each
+     * point had been added separately, so the tree has the same structure
+     * and sizes as an unweighted one, while storing each distinct point
+     * once. Queries report each distinct point once. Can only be used
+     * before balancing, and not on a tree with unweighted points already.
+     */
+    public void addPoint(double[] location, int pointWeight) {
+        if (parent != null || left != null)
+            throw new IllegalStateException("Points must be added to an unbuilt root");
+        if (pointWeight <= 0)
+            throw new IllegalArgumentException("Weight must be positive");
+        if (weights == null) {
+            if (locationCount > 0)
+                throw new IllegalStateException("Tree already has unweighted points");
+            weights = new int[locations.length];
+            weighted = true;
+            pointIndex = new HashMap<Coordinate, Integer>();
+        }
+
+        Coordinate key = new Coordinate(location);
+        Integer index = pointIndex.get(key);
+        if (index != null) {
+            weights[index] += pointWeight;
+            weight += pointWeight;
+            return;
+        }
+        if (locationCount >= locations.length) {
+            int length = Math.max(1, locations.length * 2);
+            double[][] newLocations = new double[length][];
+            int[] newWeights = new int[length];
+            System.arraycopy(locations, 0, newLocations, 0, locationCount);
+            System.arraycopy(weights, 0, newWeights, 0, locationCount);
+            locations = newLocations;
+            weights = newWeights;
+        }
+        pointIndex.put(key, locationCount);
+        locations[locationCount] = location;
+        weights[locationCount] = pointWeight;
+        locationCount++;
+        weight += pointWeight;
+        extendBounds(location);
+        if (minBoundary == null) {
+            minBoundary = new double[dimensions];
+            maxBoundary = new double[dimensions];
+        }
+        System.arraycopy(minLimit, 0, minBoundary, 0, dimensions);
+        System.arraycopy(maxLimit, 0, maxBoundary, 0, dimensions);
+    }
+
+    /**
+     * A point as a hash key, equal to another if all its coordinates are
+     * bitwise identical.
+     */
+    private static final class Coordinate {
+        private final double[] location;
+        private final int hash;
+
+        Coordinate(double[] location) {
+            this.location = location;
+            this.hash = Arrays.hashCode(location);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object other) {
+            return other instanceof Coordinate &&
+                Arrays.equals(location, ((Coordinate) other).location);
+        }
+    }
+
+    // A subtree is rebuilt after insertions once one child holds more than
+    // this fraction of its points, provided it has at least doubled in size
+    // since it was last built.
+    private static final double REBUILD_IMBALANCE = 0.75;
+
+    /**
+     * Insert a point into the tree, which may already have been balanced.
+     * The point is routed down to its leaf, which is split if it overflows.
+     * A subtree that becomes too unbalanced is rebuilt in place; the rest
+     * of the tree, including the boundaries of all other nodes, is left as
+     * it was. Since a subtree is only rebuilt after doubling in size, the
+     * cost of rebuilding is amortised over the points inserted into it.
+     * Must be called on the root, and before {@link #annihilateData()}.
+     * Weighted trees are not supported.
+     */
+    public void insert(double[] location) {
+        if (parent != null)
+            throw new IllegalStateException("Points must be inserted at the root");
+        // Only the root's flag will do: its weights are dropped once it
+        // is split
+        if (weighted)
+            throw new UnsupportedOperationException("Cannot insert into a weighted tree");
+
+        // Find the leaf first, so that we fail before changing anything
+        KdTree leaf = getLeaf(location);
+        if (leaf.locations == null)
+            throw new IllegalStateException("Point data has been annihilated");
+        // Splits and rebuilds invalidate any ids
+        invalidateIds();
+
+        if (leaf == this) {
+            // Still a single bucket, whose points are about to change in
+            // place
+            sharedLocations = null;
+            pointColumns = null;
+            addPoint(location);
+            if (locationCount > bucketSize)
+                nodeSplit(this);
+            return;
+        }
+
+        // Grow the root's boundary to cover the point, keeping the
+        // boundaries of its descendants tiling it
+        for (int i = 0; i < dimensions; i++) {
+            if (location[i] < minBoundary[i])
+                growBoundary(i, false, minBoundary[i], location[i]);
+            else if (location[i] > maxBoundary[i])
+                growBoundary(i, true, maxBoundary[i], location[i]);
+        }
+
+        // Update sizes and limits down the path, noting the highest node
+        // that needs rebuilding
+        KdTree scapegoat = null;
+        KdTree node = this;
+        while (node != leaf) {
+            node.locationCount++;
+            node.weight++;
+            node.extendBounds(location);
+            KdTree next = location[node.splitDimension] <= node.splitValue ?
+                node.left : node.right;
+            if (scapegoat == null &&
+                    node.locationCount >= 2 * node.builtSize &&
+                    node.locationCount > 2 * bucketSize &&
+                    next.locationCount + 1 > REBUILD_IMBALANCE * node.locationCount)
+                scapegoat = node;
+            node = next;
+        }
+        leaf.appendLocation(location);
+        leaf.extendBounds(location);
+
+        if (scapegoat != null)
+            rebuild(scapegoat);
+        else if (leaf.locationCount > bucketSize)
+            nodeSplit(leaf);
+    }
+
+    /**
+     * Set the size of every node to zero and clear all limits, keeping the
+     * structure of the tree and its boundaries, so that points can then be
+     * counted into it with {@link #countPoint}. Any point data is dropped.
+     */
+    public void resetSizes() {
+        locationCount = 0;
+        weight = 0;
+        minLimit = null;
+        maxLimit = null;
+        locations = null;
+        if (left != null) left.resetSizes();
+        if (right != null) right.resetSizes();
+    }
+
+    /**
+     * Count a point into the sizes and limits of the nodes containing it,
+     * without storing it or changing the structure of the tree. As with
+     * {@link #insert}, the boundaries are grown if the point lies outside
+     * the root's boundary. Must be called on the root.
+     */
+    public void countPoint(double[] location) {
+        if (parent != null)
+            throw new IllegalStateException("Points must be counted at the root");
+        if (minBoundary == null) {
+            minBoundary = location.clone();
+            maxBoundary = location.clone();
+        }
+        for (int i = 0; i < dimensions; i++) {
+            if (location[i] < minBoundary[i])
+                growBoundary(i, false, minBoundary[i], location[i]);
+            else if (location[i] > maxBoundary[i])
+                growBoundary(i, true, maxBoundary[i], location[i]);
+        }
+        KdTree node = this;
+        while (true) {
+            node.locationCount++;
+            node.weight++;
+            node.extendBounds(location);
+            if (node.left == null || node.right == null)
+                break;
+            if (location[node.splitDimension] <= node.splitValue)
+                node = node.left;
+            else
+                node = node.right;
+        }
+    }
+
+    /**
+     * Give a leaf its points, which must be exactly those counted into it,
+     * and split it as {@link #balance()} would. Must be called on the root.
+     */
+    void splitLeaf(KdTree leaf, double[][] points, int count) {
+        leaf.locations = points;
+        leaf.locationOffset = 0;
+        leaf.locationCount = count;
+        leaf.weight = count;
+        leaf.ownsLocations = true;
+        leaf.builtSize = count;
+        splitScratch = new double[count];
+        try {
+            nodeSplit(leaf);
+        } finally {
+            splitScratch = null;
+        }
+        // Splits invalidate any ids
+        invalidateIds();
+    }
+
+    /**
+     * Append a point to a leaf, first copying its points into an array of
+     * its own if it shares one with the rest of the tree.
+     */
+    private void appendLocation(double[] location) {
+        if (!ownsLocations || locationCount >= locations.length) {
+            double[][] newLocations =
+                new double[Math.max(2 * locationCount, bucketSize + 1)][];
+            System.arraycopy(locations, locationOffset, newLocations, 0,
+                             locationCount);
+            locations = newLocations;
+            locationOffset = 0;
+            ownsLocations = true;
+        }
+        locations[locationCount++] = location;
+        weight++;
+    }
+
+    /**
+     * Move one side of the boundary of this node and of all its
+     * descendants that share that side.
+     */
+    private void growBoundary(int dim, boolean max, double oldValue,
+            double newValue) {
+        double[] boundary = max ? maxBoundary : minBoundary;
+        if (boundary[dim] != oldValue)
+            return;
+        boundary[dim] = newValue;
+        if (left != null) left.growBoundary(dim, max, oldValue, newValue);
+        if (right != null) right.growBoundary(dim, max, oldValue, newValue);
+    }
+
+    /**
+     * Rebuild the subtree under the given node from its points, keeping
+     * the node's own boundaries.
+     */
+    private void rebuild(KdTree node) {
+        double[][] points = new double[Math.max(node.locationCount, bucketSize)][];
+        int count = node.collectLocations(points, 0);
+        node.left = null;
+        node.right = null;
+        node.locations = points;
+        node.locationOffset = 0;
+        node.locationCount = count;
+        node.weight = count;
+        node.ownsLocations = true;
+        node.builtSize = count;
+        nodeSplit(node);
+    }
+
+    /**
+     * Copy the points of this leaf into a new array, for use by other
+     * representations of the tree in this package.
+     */
+    double[][] getLeafLocations() {
+        if (locations == null)
+            throw new IllegalStateException("Point data has been annihilated");
+        double[][] points = new double[locationCount][];
+        System.arraycopy(locations, locationOffset, points, 0, locationCount);
+        return points;
+    }
+
+    private int collectLocations(double[][] points, int count) {
+        if (left == null || right == null) {
+            System.arraycopy(locations, locationOffset, points, count,
+                             locationCount);
+            return count + locationCount;
+        }
+        count = left.collectLocations(points, count);
+        return right.collectLocations(points, count);
+    }
+
     /**
      * Extends the bounds of this node do include a new location
      */
@@ -176,7 +759,7 @@ public class KdTree {
     }
 
     private List<double[]> getLocations() {
-        LinkedList<double[]> l = new LinkedList<double[]>();
+        List<double[]> l = new ArrayList<double[]>(locationCount);
         getLocationsHelper(l);
         return l;
     }
@@ -184,7 +767,7 @@ public class KdTree {
     private void getLocationsHelper(List<double[]> l) {
         if (left == null || right == null) {
             for (int i=0; i<locationCount; i++) {
-                l.add(locations[i]);
+                l.add(locations[locationOffset + i]);
             }
         } else {
             left.getLocationsHelper(l);
@@ -196,10 +779,14 @@ public class KdTree {
         // assuming we are using a static KD tree, once we have
         // generated the entire tree and have the split locations,
         // then we no longer need to store all the points. Use
-        // this to clean everything.
+        // this to clean everything. All leaves share the root's
+        // array of points, so this frees that one array.
         if (left != null) left.annihilateData();
         if (right != null) right.annihilateData();
         locations = null;
+        weights = null;
+        sharedLocations = null;
+        pointColumns = null;
     }
 
     /**
@@ -220,141 +807,1301 @@ public class KdTree {
         return widest;
     }
 
-    public List<KdTree> getNodes() {
+    /**
+     * Tables indexed by node id, built by assignIds(). jumps[i] is an
+     * ancestor of node i (itself for the root) chosen as in a skew-binary
+     * jump list, so that any ancestor can be reached in a number of steps
+     * logarithmic in the depth while storing one int per node, however
+     * deep the tree. Once the tree changes shape, valid is cleared, so
+     * that every node numbered with these tables knows its id is stale.
+     */
+    private static final class IdTables {
+        final KdTree[] nodesById;
+        final int[] parentIds;
+        final int[] depths;
+        final int[] subtreeEnds;
+        final int[] jumps;
+        volatile boolean valid = true;
+
+        IdTables(int count) {
+            nodesById = new KdTree[count];
+            parentIds = new int[count];
+            depths = new int[count];
+            subtreeEnds = new int[count];
+            jumps = new int[count];
+        }
+
+        long estimateBytes() {
+            return OBJECT_HEADER_BYTES * 6 +
+                (long) REFERENCE_BYTES * nodesById.length +
+                4L * (parentIds.length + depths.length + subtreeEnds.length +
+                      jumps.length);
+        }
+    }
+
+    /**
+     * Number all nodes in pre-order, starting with the root at 0 (the same
+     * ids as {@link CompiledKdTree} uses), and build tables of parents,
+     * depths and ancestors indexed by id, taking space linear in the
+     * number of nodes. Must be called on the root, after the tree is
+     * built. Inserting points afterwards invalidates the ids, after which
+     * they must be assigned again before any id is looked up.
+     *
+     * @return the number of nodes
+     */
+    public int assignIds() {
+        if (parent != null)
+            throw new IllegalStateException("Ids must be assigned from the root");
+        invalidateIds();
+        List<KdTree> nodes = getNodes();
+        int count = nodes.size();
+        IdTables tables = new IdTables(count);
+        KdTree[] nodesById = nodes.toArray(tables.nodesById);
+        int[] parentIds = tables.parentIds;
+        int[] depths = tables.depths;
+        int[] subtreeEnds = tables.subtreeEnds;
+        int[] jumps = tables.jumps;
+
+        for (int i = 0; i < count; i++) {
+            nodesById[i].id = i;
+            nodesById[i].idTables = tables;
+        }
+        for (int i = 0; i < count; i++) {
+            KdTree node = nodesById[i];
+            if (node.parent == null) {
+                parentIds[i] = -1;
+                depths[i] = 0;
+                jumps[i] = i;
+                continue;
+            }
+            int p = node.parent.id;
+            parentIds[i] = p;
+            depths[i] = depths[p] + 1;
+            // Jump twice as far as the parent does when its jump and its
+            // jump's jump cover equal distances, and otherwise just to
+            // the parent
+            int j = jumps[p];
+            if (depths[p] - depths[j] == depths[j] - depths[jumps[j]])
+                jumps[i] = jumps[j];
+            else
+                jumps[i] = p;
+        }
+        // A subtree ends where the subtree of its right child does
+        for (int i = count - 1; i >= 0; i--) {
+            KdTree node = nodesById[i];
+            if (node.left == null || node.right == null)
+                subtreeEnds[i] = i + 1;
+            else
+                subtreeEnds[i] = subtreeEnds[node.right.id];
+        }
+        return count;
+    }
+
+    /**
+     * Mark the ids of all nodes as stale, after a change to the shape of
+     * the tree rooted here.
+     */
+    private void invalidateIds() {
+        if (idTables != null) {
+            idTables.valid = false;
+            idTables = null;
+        }
+    }
+
+    private IdTables checkIds() {
+        IdTables tables = idTables;
+        if (tables == null || !tables.valid)
+            throw new IllegalStateException(
+                "Ids have not been assigned since the tree was last changed");
+        return tables;
+    }
+
+    /**
+     * Get the id of this node. See {@link #assignIds()}; throws
+     * IllegalStateException if ids have not been assigned since the tree
+     * last changed shape.
+     */
+    public int getId() {
+        checkIds();
+        return id;
+    }
+
+    /**
+     * Get the number of nodes, as counted by {@link #assignIds()}, which
+     * must have been called on this (root) node.
+     */
+    public int getNodeCount() {
+        return checkRootIds().nodesById.length;
+    }
+
+    /**
+     * Get a node by id. Must be called on the root, after
+     * {@link #assignIds()}; likewise for the other id-based lookups.
+     */
+    public KdTree getNode(int id) {
+        return checkRootIds().nodesById[id];
+    }
+
+    private IdTables checkRootIds() {
+        if (parent != null)
+            throw new IllegalStateException("Ids must be looked up from the root");
+        return checkIds();
+    }
+
+    /**
+     * Get the id of the parent of a node, or -1 for the root.
+     */
+    public int getParentId(int id) {
+        return checkRootIds().parentIds[id];
+    }
+
+    /**
+     * Get the depth of a node, with the root at depth 0.
+     */
+    public int getDepth(int id) {
+        return checkRootIds().depths[id];
+    }
+
+    /**
+     * Get the id just past the last node in the subtree under a node. The
+     * subtree consists of the nodes with ids from the node's own id up to
+     * but not including this.
+     */
+    public int getSubtreeEnd(int id) {
+        return checkRootIds().subtreeEnds[id];
+    }
+
+    /**
+     * Get the ancestor of a node at the given depth, which must be no
+     * greater than the node's own depth (at which the node itself is
+     * returned). Takes time logarithmic in the depth of the node.
+     */
+    public int getAncestor(int id, int depth) {
+        IdTables tables = checkRootIds();
+        int[] depths = tables.depths;
+        int[] jumps = tables.jumps;
+        if (depth < 0 || depth > depths[id])
+            throw new IllegalArgumentException("Node " + id +
+                " has no ancestor at depth " + depth);
+        while (depths[id] > depth)
+            id = depths[jumps[id]] >= depth ? jumps[id] : tables.parentIds[id];
+        return id;
+    }
+
+    /**
+     * Get the node that covers the given node at a cutoff size, i.e. the
+     * node, among those reached by descending from the root and dividing
+     * only nodes holding more than the given number of points, that is the
+     * given node or one of its ancestors. This is the highest ancestor
+     * holding no more than the cutoff number of points, or the node itself
+     * if it is a leaf holding more. Returns -1 if the node lies above the
+     * cutoff. Takes time logarithmic in the depth of the node; see
+     * {@link #getCutoffAncestors} for a constant-time table.
+     */
+    public int getAncestorAtCutoff(int id, int cutoff) {
+        IdTables tables = checkRootIds();
+        KdTree[] nodesById = tables.nodesById;
+        int[] parentIds = tables.parentIds;
+        int[] jumps = tables.jumps;
+        if (nodesById[id].weight > cutoff)
+            return tables.subtreeEnds[id] == id + 1 ? id : -1;
+        // Sizes never increase going down a path, so the ancestors small
+        // enough are those below some depth; climb to the highest of them,
+        // jumping where the jump doesn't overshoot
+        while (parentIds[id] >= 0) {
+            if (jumps[id] != parentIds[id] &&
+                    nodesById[jumps[id]].weight <= cutoff)
+                id = jumps[id];
+            else if (nodesById[parentIds[id]].weight <= cutoff)
+                id = parentIds[id];
+            else
+                break;
+        }
+        return id;
+    }
+
+    /**
+     * Compute, for every node, the node that covers it at the given cutoff
+     * size, as returned by {@link #getAncestorAtCutoff}.
+     *
+     * @return an array indexed by node id
+     */
+    public int[] getCutoffAncestors(int cutoff) {
+        IdTables tables = checkRootIds();
+        int count = tables.nodesById.length;
+        int[] table = new int[count];
+        // Parents come before children in pre-order
+        for (int i = 0; i < count; i++) {
+            int parentId = tables.parentIds[i];
+            if (parentId >= 0 && table[parentId] >= 0)
+                table[i] = table[parentId];
+            else if (tables.nodesById[i].weight <= cutoff ||
+                     tables.subtreeEnds[i] == i + 1)
+                table[i] = i;
+            else
+                table[i] = -1;
+        }
+        return table;
+    }
+
+    /**
+     * Get the nodes reached by descending from this node and dividing only
+     * nodes holding more than the given number of points.
+     */
+    public List<KdTree> getNodesToCutoff(int cutoff) {
         List<KdTree> list = new ArrayList<KdTree>();
-        this.getNodesHelper(list);
+        getNodesToCutoffHelper(list, cutoff);
         return list;
     }
 
-    private void getNodesHelper(List<KdTree> list) {
-        list.add(this);
-        if (left != null) left.getNodesHelper(list);
-        if (right != null) right.getNodesHelper(list);
+    private void getNodesToCutoffHelper(List<KdTree> list, int cutoff) {
+        // We do > not >= because nodeSplit uses > to decide when to split
+        if (weight <= cutoff || left == null || right == null)
+            list.add(this);
+        else {
+            left.getNodesToCutoffHelper(list, cutoff);
+            right.getNodesToCutoffHelper(list, cutoff);
+        }
+    }
+
+    public List<KdTree> getNodes() {
+        List<KdTree> list = new ArrayList<KdTree>();
+        for (KdTree node : preOrder())
+            list.add(node);
+        return list;
     }
 
     public List<KdTree> getLeaves() {
         List<KdTree> list = new ArrayList<KdTree>();
-        this.getLeavesHelper(list);
+        for (KdTree node : leaves())
+            list.add(node);
         return list;
     }
 
-    private void getLeavesHelper(List<KdTree> list) {
-        if (left == null && right == null)
-            list.add(this);
-        else{
-            if (left != null)
-                left.getLeavesHelper(list);
-            if (right != null)
-                right.getLeavesHelper(list);
+    // Traversal. All of these walk the subtree under this node by
+    // following parent links, so they need no stack and allocate nothing
+    // beyond the iterator itself.
+
+    private boolean isLeaf() {
+        return left == null || right == null;
+    }
+
+    /**
+     * The node after the given one in pre-order within the subtree under
+     * this node, or null; if skipChildren, the nodes under the given one
+     * are skipped.
+     */
+    private KdTree nextPreOrder(KdTree node, boolean skipChildren) {
+        if (!skipChildren && !node.isLeaf())
+            return node.left;
+        while (node != this) {
+            KdTree up = node.parent;
+            if (node == up.left)
+                return up.right;
+            node = up;
+        }
+        return null;
+    }
+
+    private static KdTree firstPostOrder(KdTree node) {
+        while (!node.isLeaf())
+            node = node.left;
+        return node;
+    }
+
+    /**
+     * The node after the given one in post-order within the subtree under
+     * this node, or null.
+     */
+    private KdTree nextPostOrder(KdTree node) {
+        if (node == this)
+            return null;
+        KdTree up = node.parent;
+        if (node == up.left)
+            return firstPostOrder(up.right);
+        return up;
+    }
+
+    /**
+     * The leaf after the given one within the subtree under this node, or
+     * null.
+     */
+    private KdTree nextLeaf(KdTree leaf) {
+        KdTree node = leaf;
+        while (node != this) {
+            KdTree up = node.parent;
+            if (node == up.left)
+                return firstPostOrder(up.right);
+            node = up;
+        }
+        return null;
+    }
+
+    private static final int PRE_ORDER = 0, POST_ORDER = 1, LEAVES = 2;
+
+    private class NodeIterator implements Iterator<KdTree> {
+        private final int order;
+        private KdTree next;
+
+        NodeIterator(int order) {
+            this.order = order;
+            next = order == PRE_ORDER ? KdTree.this :
+                firstPostOrder(KdTree.this);
+        }
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        public KdTree next() {
+            if (next == null)
+                throw new NoSuchElementException();
+            KdTree node = next;
+            if (order == PRE_ORDER)
+                next = nextPreOrder(node, false);
+            else if (order == POST_ORDER)
+                next = nextPostOrder(node);
+            else
+                next = nextLeaf(node);
+            return node;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private Iterable<KdTree> iterable(final int order) {
+        return new Iterable<KdTree>() {
+            public Iterator<KdTree> iterator() {
+                return new NodeIterator(order);
+            }
+        };
+    }
+
+    /**
+     * The nodes under and including this one, in pre-order (parents
+     * before children, left before right), as ids are assigned.
+     */
+    public Iterable<KdTree> preOrder() {
+        return iterable(PRE_ORDER);
+    }
+
+    /**
+     * The nodes under and including this one, in post-order (children
+     * before parents, left before right).
+     */
+    public Iterable<KdTree> postOrder() {
+        return iterable(POST_ORDER);
+    }
+
+    /**
+     * The leaves under this node (or the node itself, if a leaf), from
+     * left to right.
+     */
+    public Iterable<KdTree> leaves() {
+        return iterable(LEAVES);
+    }
+
+    /**
+     * Visit the nodes under and including this one in pre-order, pruning
+     * and stopping as the visitor directs.
+     *
+     * @return false if the visitor terminated the walk, true otherwise
+     */
+    public boolean walk(Visitor visitor) {
+        KdTree node = this;
+        while (node != null) {
+            VisitResult result = visitor.visit(node);
+            if (result == VisitResult.TERMINATE)
+                return false;
+            node = nextPreOrder(node, result == VisitResult.SKIP_SUBTREE);
+        }
+        return true;
+    }
+
+    /**
+     * Visit, in pre-order, the nodes whose boundaries overlap the box
+     * [min, max] (inclusive in each dimension), descending from this node
+     * only into overlapping nodes holding more than the given number of
+     * points, as {@link #getNodesToCutoff} does. Each node visited is
+     * either a leaf or holds no more than the cutoff, and no node under a
+     * visited node is visited. With a negative cutoff, the leaves are
+     * visited. Nodes are pruned by their boundaries, so the query takes
+     * time proportional to the number of nodes visited plus the depth,
+     * rather than to the size of the tree. Does not need the point data.
+     *
+     * @return false if the visitor terminated the query, true otherwise
+     */
+    public boolean rangeQuery(final double[] min, final double[] max,
+            final int cutoff, final RangeVisitor visitor) {
+        return walk(new Visitor() {
+            public VisitResult visit(KdTree node) {
+                if (node.minBoundary == null ||
+                        !overlaps(min, max, node.minBoundary, node.maxBoundary))
+                    return VisitResult.SKIP_SUBTREE;
+                if (node.weight > cutoff && !node.isLeaf())
+                    return VisitResult.CONTINUE;
+                boolean contained =
+                    contains(min, max, node.minBoundary, node.maxBoundary);
+                if (visitor.visit(node, contained) == VisitResult.TERMINATE)
+                    return VisitResult.TERMINATE;
+                return VisitResult.SKIP_SUBTREE;
+            }
+        });
+    }
+
+    /**
+     * Get the leaves under this node whose boundaries overlap the box
+     * [min, max], in pre-order.
+     */
+    public List<KdTree> rangeQueryLeaves(double[] min, double[] max) {
+        return rangeQueryNodes(min, max, -1);
+    }
+
+    /**
+     * Get the nodes that {@link #getNodesToCutoff} would return for the
+     * given cutoff and whose boundaries overlap the box [min, max], in
+     * pre-order.
+     */
+    public List<KdTree> rangeQueryNodes(double[] min, double[] max,
+            int cutoff) {
+        final List<KdTree> list = new ArrayList<KdTree>();
+        rangeQuery(min, max, cutoff, new RangeVisitor() {
+            public VisitResult visit(KdTree node, boolean contained) {
+                list.add(node);
+                return VisitResult.CONTINUE;
+            }
+        });
+        return list;
+    }
+
+    /**
+     * Find all points under this node lying in the box [min, max]
+     * (inclusive in each dimension). Subtrees are pruned, and taken whole
+     * without testing their points, by their limits. Must be called before
+     * {@link #annihilateData()}. Results are written into the
+     * caller-supplied buffer in no particular order; if there are more
+     * matches than fit, the extra matches are counted but not stored.
+     *
+     * @return the total number of points found
+     */
+    public int rangeQuery(final double[] min, final double[] max,
+            final double[][] resultPoints) {
+        final int[] count = new int[1];
+        walk(new Visitor() {
+            public VisitResult visit(KdTree node) {
+                if (node.locationCount == 0 ||
+                        !overlaps(min, max, node.minLimit, node.maxLimit))
+                    return VisitResult.SKIP_SUBTREE;
+                if (!node.isLeaf())
+                    return VisitResult.CONTINUE;
+                if (node.locations == null)
+                    throw new IllegalStateException("Point data has been annihilated");
+                boolean all =
+                    contains(min, max, node.minLimit, node.maxLimit);
+                int end = node.locationOffset + node.locationCount;
+                for (int i = node.locationOffset; i < end; i++) {
+                    double[] location = node.locations[i];
+                    if (all || contains(min, max, location, location)) {
+                        if (count[0] < resultPoints.length)
+                            resultPoints[count[0]] = location;
+                        count[0]++;
+                    }
+                }
+                return VisitResult.SKIP_SUBTREE;
+            }
+        });
+        return count[0];
+    }
+
+    // Whether the box [min, max] and the region [lo, hi] may intersect
+    // (a NaN bound, which limits can have, never rules it out)
+    private static boolean overlaps(double[] min, double[] max, double[] lo,
+            double[] hi) {
+        for (int i = 0; i < min.length; i++) {
+            if (lo[i] > max[i] || hi[i] < min[i])
+                return false;
         }
+        return true;
+    }
+
+    // Whether the region [lo, hi] lies inside the box [min, max]
+    private static boolean contains(double[] min, double[] max, double[] lo,
+            double[] hi) {
+        for (int i = 0; i < min.length; i++) {
+            if (!(lo[i] >= min[i] && hi[i] <= max[i]))
+                return false;
+        }
+        return true;
     }
 
     public void balance() {
-        nodeSplit(this);
+        long start = System.nanoTime();
+        builtSize = weight;
+        splitScratch = new double[locationCount];
+        if (weights != null)
+            weightScratch = new int[locationCount];
+        pointIndex = null;
+        sharedLocations = locations;
+        sharedCount = locationCount;
+        pointColumns = null;
+        try {
+            nodeSplit(this);
+        } finally {
+            splitScratch = null;
+            weightScratch = null;
+        }
+        balanceNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Balance the tree in parallel, using the given pool. Once a node has
+     * been split, its two subtrees are built as separate tasks, down to
+     * nodes holding fewer than the given number of points, which are built
+     * sequentially. Since subtrees are independent, the resulting tree is
+     * identical to the one produced by {@link #balance()}.
+     */
+    public void balance(ForkJoinPool pool, int parallelThreshold) {
+        long start = System.nanoTime();
+        builtSize = weight;
+        splitScratch = new double[locationCount];
+        if (weights != null)
+            weightScratch = new int[locationCount];
+        pointIndex = null;
+        sharedLocations = locations;
+        sharedCount = locationCount;
+        pointColumns = null;
+        try {
+            pool.invoke(new BalanceTask(this, this, parallelThreshold));
+        } finally {
+            splitScratch = null;
+            weightScratch = null;
+        }
+        balanceNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Balance the tree in parallel, using the given pool and a default
+     * threshold for building subtrees sequentially.
+     */
+    public void balance(ForkJoinPool pool) {
+        balance(pool, DEFAULT_PARALLEL_THRESHOLD);
+    }
+
+    private static final int DEFAULT_PARALLEL_THRESHOLD = 8192;
+
+    private static class BalanceTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final KdTree root;
+        private final KdTree cursor;
+        private final int threshold;
+
+        BalanceTask(KdTree root, KdTree cursor, int threshold) {
+            this.root = root;
+            this.cursor = cursor;
+            this.threshold = threshold;
+        }
+
+        protected void compute() {
+            // Carry on down the larger child in this task and fork the
+            // smaller, so that tasks nest no deeper than log(n) even when
+            // splits are very uneven (e.g. with many duplicate points)
+            List<BalanceTask> forked = new ArrayList<BalanceTask>();
+            KdTree node = cursor;
+            while (node.locationCount >= threshold && root.splitNode(node)) {
+                BalanceTask task =
+                    new BalanceTask(root, smallerChild(node), threshold);
+                task.fork();
+                forked.add(task);
+                node = largerChild(node);
+            }
+            if (node.locationCount < threshold)
+                root.nodeSplit(node);
+            for (int i = forked.size() - 1; i >= 0; i--)
+                forked.get(i).join();
+        }
     }
 
     private void nodeSplit(KdTree cursor) {
-        if (cursor.locationCount > cursor.bucketSize) {
-            cursor.splitDimension = cursor.findWidestAxis();
+        // Recurse on the smaller child only, to bound the stack depth
+        while (splitNode(cursor)) {
+            nodeSplit(smallerChild(cursor));
+            cursor = largerChild(cursor);
+        }
+    }
 
+    private static KdTree smallerChild(KdTree node) {
+        return node.left.locationCount < node.right.locationCount ?
+            node.left : node.right;
+    }
+
+    private static KdTree largerChild(KdTree node) {
+        return node.left.locationCount < node.right.locationCount ?
+            node.right : node.left;
+    }
+
+    /**
+     * Split a single node into two leaves, if it holds more than a bucket's
+     * worth of points. Returns whether the node was split.
+     */
+    private boolean splitNode(KdTree cursor) {
+        if (chooseSplitDimension(cursor)) {
+            long started = instruments != null ? System.nanoTime() : 0;
+            double splitValue = 0;
             if (splitMethod == SplitMethod.HALFWAY) {
-                cursor.splitValue = (cursor.minLimit[cursor.splitDimension] +
-                                     cursor.maxLimit[cursor.splitDimension]) * 0.5;
+                splitValue = (cursor.minLimit[cursor.splitDimension] +
+                              cursor.maxLimit[cursor.splitDimension]) * 0.5;
             } else if (splitMethod == SplitMethod.MEDIAN) {
                 // split on the median of the elements
-                List<Double> list = new ArrayList<Double>();
-                for(int i=0; i<cursor.locationCount ; i++) {
-                    list.add(cursor.locations[i][cursor.splitDimension]);
-                }
-                Collections.sort(list);
-                if(list.size() % 2 == 1) {
-                    cursor.splitValue = list.get(list.size() / 2);
+                double[] values = getCoordinates(cursor, cursor.splitDimension);
+                int from = cursor.locationOffset;
+                int to = from + cursor.locationCount;
+                if (cursor.weights == null) {
+                    splitValue = median(values, from, to);
                 } else {
-                    cursor.splitValue = (list.get(list.size() / 2) + list.get(list.size() / 2 - 1))/2;
+                    // The same median as if each point were there as many
+                    // times as its weight
+                    int[] w = weightScratch;
+                    if (w == null || w.length < to)
+                        w = new int[to];
+                    System.arraycopy(cursor.weights, from, w, from, to - from);
+                    splitValue = weightedMedian(values, w, from, to,
+                                                cursor.weight);
                 }
             } else if (splitMethod == SplitMethod.MAX_MARGIN) {
-                List<Double> list = new ArrayList<Double>();
-                for(int i = 0; i < cursor.locationCount; i++) {
-                    list.add(cursor.locations[i][cursor.splitDimension]);
-                }
-                Collections.sort(list);
-                double maxMargin = 0.0;
-                double splitValue = Double.NaN;
-                for (int i = 0; i < list.size() - 1; i++) {
-                    double delta = list.get(i+1) - list.get(i);
-                    if (delta > maxMargin) {
-                        maxMargin = delta;
-                        splitValue = list.get(i) + 0.5 * delta;
+                double[] values = getCoordinates(cursor, cursor.splitDimension);
+                splitValue = maxMarginSplit(values, cursor.locationOffset,
+                    cursor.locationOffset + cursor.locationCount);
+            }
+            splitAt(cursor, splitValue);
+            KdTree left = cursor.left;
+            KdTree right = cursor.right;
+            long selected = instruments != null ? System.nanoTime() : 0;
+
+            // Partition locations in place, left points first, moving any
+            // weights along with them
+            double[][] locs = cursor.locations;
+            int[] weights = cursor.weights;
+            int dim = cursor.splitDimension;
+            double split = cursor.splitValue;
+            int start = cursor.locationOffset;
+            int end = start + cursor.locationCount;
+            int i = start, j = end - 1;
+            while (i <= j) {
+                double[] location = locs[i];
+                if (location[dim] > split) {
+                    locs[i] = locs[j];
+                    locs[j] = location;
+                    if (weights != null) {
+                        int w = weights[i];
+                        weights[i] = weights[j];
+                        weights[j] = w;
                     }
+                    j--;
+                } else {
+                    i++;
                 }
-                cursor.splitValue = splitValue;
             }
+            if (i == start || i == end) {
+                // Only a split on a dimension whose limits are NaN can
+                // leave every point on one side, and it would do so again
+                // every time, so leave the node an overfull leaf
+                unsplit(cursor);
+                return false;
+            }
+            left.locationOffset = start;
+            left.locationCount = i - start;
+            right.locationOffset = i;
+            right.locationCount = end - i;
+            if (weights == null) {
+                left.weight = left.locationCount;
+                right.weight = right.locationCount;
+            } else {
+                for (int k = start; k < i; k++)
+                    left.weight += weights[k];
+                right.weight = cursor.weight - left.weight;
+            }
+            left.builtSize = left.weight;
+            right.builtSize = right.weight;
+            for (int k = start; k < i; k++)
+                left.extendBounds(locs[k]);
+            for (int k = i; k < end; k++)
+                right.extendBounds(locs[k]);
+
+            cursor.locations = null;
+            cursor.weights = null;
+            if (instruments != null)
+                instruments.countSplit(selected - started,
+                                       System.nanoTime() - selected);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Decide whether a node should be split, setting its split dimension
+     * to the widest axis of its limits if so. Package-private for
+     * {@link ExternalKdTreeBuilder}, which makes the same decisions.
+     */
+    boolean chooseSplitDimension(KdTree cursor) {
+        if (cursor.weight <= cursor.bucketSize)
+            return false;
+        cursor.splitDimension = cursor.findWidestAxis();
+
+        // Don't split node if it has no width in any axis. It just
+        // stays an overfull leaf. (Checked before choosing the split
+        // value, which would be thrown away.)
+        return cursor.minLimit[cursor.splitDimension] !=
+            cursor.maxLimit[cursor.splitDimension];
+    }
+
+    /**
+     * Make a stem back into a leaf, after finding that its split leaves
+     * all its points on one side.
+     */
+    void unsplit(KdTree cursor) {
+        cursor.left = null;
+        cursor.right = null;
+    }
+
+    /**
+     * Make a node into a stem split at the given value on its split
+     * dimension, with two empty children whose boundaries tile its own.
+     * The children share the node's points, which the caller must
+     * partition between them.
+     */
+    void splitAt(KdTree cursor, double splitValue) {
+        // Never split on infinity or NaN
+        if (splitValue == Double.POSITIVE_INFINITY) {
+            splitValue = Double.MAX_VALUE;
+        }
+        else if (splitValue == Double.NEGATIVE_INFINITY) {
+            splitValue = -Double.MAX_VALUE;
+        }
+        else if (Double.isNaN(splitValue)) {
+            splitValue = 0;
+        }
+
+        // Don't let the split value be the same as the upper value as
+        // can happen due to rounding errors!
+        if (splitValue == cursor.maxLimit[cursor.splitDimension]) {
+            splitValue = cursor.minLimit[cursor.splitDimension];
+        }
+        cursor.splitValue = splitValue;
+
+        // Create child leaves
+        KdTree left = new ChildNode(cursor, false);
+        KdTree right = new ChildNode(cursor, true);
+
+        // Set child leaf boundaries
+        left.minBoundary = new double[dimensions];
+        left.maxBoundary = new double[dimensions];
+        right.minBoundary = new double[dimensions];
+        right.maxBoundary = new double[dimensions];
+        System.arraycopy(cursor.minBoundary, 0, left.minBoundary, 0, dimensions);
+        System.arraycopy(cursor.maxBoundary, 0, left.maxBoundary, 0, dimensions);
+        System.arraycopy(cursor.minBoundary, 0, right.minBoundary, 0, dimensions);
+        System.arraycopy(cursor.maxBoundary, 0, right.maxBoundary, 0, dimensions);
+        left.maxBoundary[cursor.splitDimension] = splitValue;
+        right.minBoundary[cursor.splitDimension] = splitValue;
+
+        // Make into stem
+        cursor.left = left;
+        cursor.right = right;
+    }
+
+    /**
+     * Count a point into the size and limits of the given node, without
+     * storing it. Used by {@link ExternalKdTreeBuilder}.
+     */
+    void countInto(KdTree node, double[] location) {
+        node.locationCount++;
+        node.weight++;
+        node.extendBounds(location);
+    }
+
+    /**
+     * Copy the given coordinate of all points in a node into a primitive
+     * array, for split selection. The values are stored at the same
+     * indices as the points they come from, so that nodes built in
+     * parallel can share the root's scratch array.
+     */
+    private double[] getCoordinates(KdTree cursor, int dim) {
+        int start = cursor.locationOffset;
+        int end = start + cursor.locationCount;
+        double[] values = splitScratch;
+        if (values == null || values.length < end)
+            values = new double[end];
+        double[][] locs = cursor.locations;
+        for (int i = start; i < end; i++) {
+            values[i] = locs[i][dim];
+        }
+        return values;
+    }
+
+    // Split selection. All comparisons use the total order of
+    // Double.compare() (-0.0 before 0.0, NaN last), which is the order
+    // that sorting boxed Doubles used to give us, so split values come out
+    // exactly as before.
+
+    /**
+     * Compute the median of values[from, to), averaging the two middle
+     * values when there is an even number of them. Reorders the values.
+     * Runs in expected linear time.
+     */
+    static double median(double[] values, int from, int to) {
+        int n = to - from;
+        int k = from + n / 2;
+        select(values, from, to, k);
+        if (n % 2 == 1)
+            return values[k];
+        // The lower middle value is the greatest of those before k
+        double lower = values[from];
+        for (int i = from + 1; i < k; i++) {
+            if (Double.compare(values[i], lower) > 0)
+                lower = values[i];
+        }
+        return (values[k] + lower) / 2;
+    }
+
+    /**
+     * Compute the median of values[from, to) as {@link #median} would if
+     * each value appeared as many times as its weight, given the total of
+     * the weights. Reorders the values and their weights together.
+     */
+    static double weightedMedian(double[] values, int[] weights, int from,
+            int to, int total) {
+        int k = total / 2;
+        double upper = weightedSelect(values, weights, from, to, k);
+        if (total % 2 == 1)
+            return upper;
+        return (upper + weightedSelect(values, weights, from, to, k - 1)) / 2;
+    }
 
-            // Never split on infinity or NaN
-            if (cursor.splitValue == Double.POSITIVE_INFINITY) {
-                cursor.splitValue = Double.MAX_VALUE;
+    /**
+     * Find the value that would be at index rank if each value in
+     * values[from, to) appeared as many times as its weight and they were
+     * sorted. Quickselect on the values and weights together, as in
+     * {@link #select}, falling back to a sort.
+     */
+    static double weightedSelect(double[] values, int[] weights, int from,
+            int to, long rank) {
+        int depthLimit = 2 * (32 - Integer.numberOfLeadingZeros(to - from));
+        while (to - from > 16 && depthLimit-- > 0) {
+            int mid = (from + to) >>> 1;
+            double pivot = medianOfThree(values[from], values[mid],
+                                         values[to - 1]);
+            long less = 0, equal = 0;
+            int lt = from, i = from, gt = to - 1;
+            while (i <= gt) {
+                int c = Double.compare(values[i], pivot);
+                if (c < 0) {
+                    less += weights[i];
+                    swap(values, weights, lt++, i++);
+                } else if (c > 0) {
+                    swap(values, weights, i, gt--);
+                } else {
+                    equal += weights[i];
+                    i++;
+                }
             }
-            else if (cursor.splitValue == Double.NEGATIVE_INFINITY) {
-                cursor.splitValue = -Double.MAX_VALUE;
+            if (rank < less) {
+                to = lt;
+            } else if (rank < less + equal) {
+                return pivot;
+            } else {
+                rank -= less + equal;
+                from = gt + 1;
             }
-            else if (Double.isNaN(cursor.splitValue)) {
-                cursor.splitValue = 0;
+        }
+        heapSort(values, weights, from, to);
+        for (int i = from; i < to - 1; i++) {
+            rank -= weights[i];
+            if (rank < 0)
+                return values[i];
+        }
+        return values[to - 1];
+    }
+
+    /**
+     * Sort values[from, to) in the order of Double.compare(), keeping each
+     * weight with its value.
+     */
+    private static void heapSort(double[] values, int[] weights, int from,
+            int to) {
+        int n = to - from;
+        for (int i = n / 2 - 1; i >= 0; i--)
+            siftDown(values, weights, from, i, n);
+        for (int end = n - 1; end > 0; end--) {
+            swap(values, weights, from, from + end);
+            siftDown(values, weights, from, 0, end);
+        }
+    }
+
+    private static void siftDown(double[] values, int[] weights, int base,
+            int i, int n) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= n)
+                return;
+            if (child + 1 < n && Double.compare(values[base + child + 1],
+                                                values[base + child]) > 0)
+                child++;
+            if (Double.compare(values[base + child], values[base + i]) <= 0)
+                return;
+            swap(values, weights, base + i, base + child);
+            i = child;
+        }
+    }
+
+    private static void swap(double[] values, int[] weights, int i, int j) {
+        swap(values, i, j);
+        int t = weights[i];
+        weights[i] = weights[j];
+        weights[j] = t;
+    }
+
+    /**
+     * Find the split value lying halfway across the widest gap between
+     * successive values in values[from, to), or NaN if all values are the
+     * same. Sorts the values.
+     */
+    static double maxMarginSplit(double[] values, int from, int to) {
+        Arrays.sort(values, from, to);
+        double maxMargin = 0.0;
+        double splitValue = Double.NaN;
+        for (int i = from; i < to - 1; i++) {
+            double delta = values[i + 1] - values[i];
+            if (delta > maxMargin) {
+                maxMargin = delta;
+                splitValue = values[i] + 0.5 * delta;
             }
+        }
+        return splitValue;
+    }
 
-            // Don't split node if it has no width in any axis. Double the
-            // bucket size instead
-            if (cursor.minLimit[cursor.splitDimension] == cursor.maxLimit[cursor.splitDimension]) {
-                double[][] newLocations = new double[cursor.locations.length * 2][];
-                System.arraycopy(cursor.locations, 0, newLocations, 0, cursor.locationCount);
-                cursor.locations = newLocations;
+    /**
+     * Rearrange values[from, to) so that values[k] holds the value that
+     * would be there if the range were sorted, with no greater value
+     * before it and no smaller value after it. Quickselect with three-way
+     * partitioning (so runs of duplicates are cheap), falling back to a
+     * sort if the partitioning goes badly.
+     */
+    static void select(double[] values, int from, int to, int k) {
+        int depthLimit = 2 * (32 - Integer.numberOfLeadingZeros(to - from));
+        while (to - from > 16) {
+            if (depthLimit-- == 0)
+                break;
+            int mid = (from + to) >>> 1;
+            double pivot = medianOfThree(values[from], values[mid],
+                                         values[to - 1]);
+            // values[from, lt) < pivot, values[lt, i) == pivot,
+            // values(gt, to) > pivot
+            int lt = from, i = from, gt = to - 1;
+            while (i <= gt) {
+                int c = Double.compare(values[i], pivot);
+                if (c < 0)
+                    swap(values, lt++, i++);
+                else if (c > 0)
+                    swap(values, i, gt--);
+                else
+                    i++;
+            }
+            if (k < lt)
+                to = lt;
+            else if (k > gt)
+                from = gt + 1;
+            else
                 return;
+        }
+        Arrays.sort(values, from, to);
+    }
+
+    private static double medianOfThree(double a, double b, double c) {
+        if (Double.compare(a, b) > 0) {
+            double t = a; a = b; b = t;
+        }
+        if (Double.compare(b, c) > 0) {
+            b = c;
+            if (Double.compare(a, b) > 0)
+                b = a;
+        }
+        return b;
+    }
+
+    private static void swap(double[] values, int i, int j) {
+        double t = values[i];
+        values[i] = values[j];
+        values[j] = t;
+    }
+
+    /**
+     * Find the k points nearest to the given point, using branch-and-bound
+     * search over the limits of each node. Must be called on the root, and
+     * before {@link #annihilateData()}. The results are written into the
+     * caller-supplied buffers, which must hold at least k elements, in order
+     * of increasing distance; distances are as computed by
+     * {@link #pointDist} (squared Euclidean distance by default).
+     *
+     * @return the number of points found, which is less than k only if the
+     *   tree holds fewer than k points
+     */
+    public int nearest(double[] point, int k, double[][] resultPoints,
+            double[] resultDistances) {
+        if (k <= 0)
+            return 0;
+        if (instruments != null)
+            instruments.searches.incrementAndGet();
+        int count = nearestSearch(this, point, k, resultPoints,
+                                  resultDistances, 0);
+        sortHeap(resultDistances, resultPoints, count);
+        return count;
+    }
+
+    private int nearestSearch(KdTree root, double[] point, int k,
+            double[][] resultPoints, double[] resultDistances, int count) {
+        if (root.instruments != null)
+            root.instruments.searchNodes.incrementAndGet();
+        if (locationCount == 0)
+            return count;
+        if (count == k && root.pointRegionDist(point, minLimit, maxLimit) >
+                resultDistances[0])
+            return count;
+
+        if (left == null || right == null)
+            return scanLeaf(root, point, k, resultPoints, resultDistances,
+                            count);
+
+        // Search the side containing the point first, so that the bound
+        // is as tight as possible when we get to the other side
+        KdTree near, far;
+        if (point[splitDimension] <= splitValue) {
+            near = left;
+            far = right;
+        } else {
+            near = right;
+            far = left;
+        }
+        count = near.nearestSearch(root, point, k, resultPoints,
+                                   resultDistances, count);
+        return far.nearestSearch(root, point, k, resultPoints,
+                                 resultDistances, count);
+    }
+
+    /**
+     * Offer the points of this leaf to a bounded max-heap of the k nearest
+     * points found so far, held in the result buffers. Returns the new
+     * number of points in the heap. Also used by
+     * {@link ApproximateNearestSearch}.
+     */
+    int scanLeaf(KdTree root, double[] point, int k, double[][] resultPoints,
+            double[] resultDistances, int count) {
+        if (locations == null)
+            throw new IllegalStateException("Point data has been annihilated");
+        int end = locationOffset + locationCount;
+        PointColumns columns = root.getPointColumns(locations, point);
+        double[] dists = columns == null ? null :
+            columns.distances(point, locationOffset, end);
+        for (int i = locationOffset; i < end; i++) {
+            double dist = dists != null ? dists[i - locationOffset] :
+                root.pointDist(point, locations[i]);
+            if (count < k) {
+                heapPush(resultDistances, resultPoints, count, dist,
+                         locations[i]);
+                count++;
+            } else if (dist < resultDistances[0]) {
+                heapReplaceTop(resultDistances, resultPoints, count, dist,
+                               locations[i]);
             }
+        }
+        return count;
+    }
+
+    /**
+     * Get the columns for computing distances from the given point to the
+     * points of a leaf in a batch, building them if need be, or null if
+     * the leaf's points are not in the shared array (e.g. after an insert)
+     * or the distances could differ from those of pointDist(). Must be
+     * called on the root.
+     */
+    private PointColumns getPointColumns(double[][] leafLocations,
+            double[] point) {
+        if (!defaultMetric || leafLocations != sharedLocations ||
+                point.length != dimensions || !PointColumns.canBatch(point))
+            return null;
+        PointColumns columns = pointColumns;
+        if (columns == null) {
+            synchronized (this) {
+                columns = pointColumns;
+                if (columns == null) {
+                    columns = new PointColumns(sharedLocations, sharedCount,
+                                               dimensions);
+                    pointColumns = columns;
+                }
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Find all points within the given distance of the given point, with
+     * distances as computed by {@link #pointDist} (so for the default metric
+     * the radius is a squared Euclidean distance). Must be called on the
+     * root, and before {@link #annihilateData()}. Results are written into
+     * the caller-supplied buffers in no particular order; if there are more
+     * matches than fit, the extra matches are counted but not stored.
+     *
+     * @return the total number of points found
+     */
+    public int withinRadius(double[] point, double radius,
+            double[][] resultPoints, double[] resultDistances) {
+        if (instruments != null)
+            instruments.searches.incrementAndGet();
+        return radiusSearch(this, point, radius, resultPoints,
+                            resultDistances, 0);
+    }
+
+    private int radiusSearch(KdTree root, double[] point, double radius,
+            double[][] resultPoints, double[] resultDistances, int count) {
+        if (root.instruments != null)
+            root.instruments.searchNodes.incrementAndGet();
+        if (locationCount == 0 ||
+                root.pointRegionDist(point, minLimit, maxLimit) > radius)
+            return count;
 
-            // Don't let the split value be the same as the upper value as
-            // can happen due to rounding errors!
-            if (cursor.splitValue == cursor.maxLimit[cursor.splitDimension]) {
-                cursor.splitValue = cursor.minLimit[cursor.splitDimension];
+        if (left == null || right == null) {
+            if (locations == null)
+                throw new IllegalStateException("Point data has been annihilated");
+            int capacity = Math.min(resultPoints.length, resultDistances.length);
+            int end = locationOffset + locationCount;
+            PointColumns columns = root.getPointColumns(locations, point);
+            double[] dists = columns == null ? null :
+                columns.distances(point, locationOffset, end);
+            for (int i = locationOffset; i < end; i++) {
+                double dist = dists != null ? dists[i - locationOffset] :
+                    root.pointDist(point, locations[i]);
+                if (dist <= radius) {
+                    if (count < capacity) {
+                        resultPoints[count] = locations[i];
+                        resultDistances[count] = dist;
+                    }
+                    count++;
+                }
             }
+            return count;
+        }
 
-            // Create child leaves
-            KdTree left = new ChildNode(cursor, false);
-            KdTree right = new ChildNode(cursor, true);
-
-            // Set child leaf boundaries
-            left.minBoundary = new double[dimensions];
-            left.maxBoundary = new double[dimensions];
-            right.minBoundary = new double[dimensions];
-            right.maxBoundary = new double[dimensions];
-            System.arraycopy(cursor.minBoundary, 0, left.minBoundary, 0, dimensions);
-            System.arraycopy(cursor.maxBoundary, 0, left.maxBoundary, 0, dimensions);
-            System.arraycopy(cursor.minBoundary, 0, right.minBoundary, 0, dimensions);
-            System.arraycopy(cursor.maxBoundary, 0, right.maxBoundary, 0, dimensions);
-            left.maxBoundary[cursor.splitDimension] = cursor.splitValue;
-            right.minBoundary[cursor.splitDimension] = cursor.splitValue;
-
-            // Move locations into children
-            for (int i = 0; i < cursor.locationCount; i++) {
-               double[] oldLocation = cursor.locations[i];
-               if (oldLocation[cursor.splitDimension] > cursor.splitValue) {
-                   // Right
-                   right.locations[right.locationCount] = oldLocation;
-                   right.locationCount++;
-                   right.extendBounds(oldLocation);
-               }
-               else {
-                   // Left
-                   left.locations[left.locationCount] = oldLocation;
-                   left.locationCount++;
-                   left.extendBounds(oldLocation);
-               }
+        count = left.radiusSearch(root, point, radius, resultPoints,
+                                  resultDistances, count);
+        return right.radiusSearch(root, point, radius, resultPoints,
+                                  resultDistances, count);
+    }
+
+    /**
+     * Find the k leaves whose boundaries are nearest to the given point,
+     * with distances as computed by {@link #pointRegionDist}. The leaf
+     * containing the point is at distance 0. Unlike {@link #nearest}, this
+     * does not need the point data, so it can be used after
+     * {@link #annihilateData()}. Must be called on the root.
+     *
+     * @return the number of leaves found, which is 0 if the tree is empty
+     */
+    public int nearestLeaves(double[] point, int k, KdTree[] resultLeaves,
+            double[] resultDistances) {
+        // An empty tree has no boundaries to measure distances from
+        if (k <= 0 || size() == 0)
+            return 0;
+        if (instruments != null)
+            instruments.searches.incrementAndGet();
+        int count = nearestLeafSearch(this, point, k, resultLeaves,
+                                      resultDistances, 0);
+        sortHeap(resultDistances, resultLeaves, count);
+        return count;
+    }
+
+    private int nearestLeafSearch(KdTree root, double[] point, int k,
+            KdTree[] resultLeaves, double[] resultDistances, int count) {
+        if (root.instruments != null)
+            root.instruments.searchNodes.incrementAndGet();
+        double dist = root.pointRegionDist(point, minBoundary, maxBoundary);
+        if (count == k && dist > resultDistances[0])
+            return count;
+
+        if (left == null || right == null) {
+            if (count < k) {
+                heapPush(resultDistances, resultLeaves, count, dist, this);
+                count++;
+            } else if (dist < resultDistances[0]) {
+                heapReplaceTop(resultDistances, resultLeaves, count, dist,
+                               this);
             }
+            return count;
+        }
 
-            // Make into stem
-            cursor.left = left;
-            cursor.right = right;
-            cursor.locations = null;
-            cursor.nodeSplit(left);
-            cursor.nodeSplit(right);
+        KdTree near, far;
+        if (point[splitDimension] <= splitValue) {
+            near = left;
+            far = right;
+        } else {
+            near = right;
+            far = left;
+        }
+        count = near.nearestLeafSearch(root, point, k, resultLeaves,
+                                       resultDistances, count);
+        return far.nearestLeafSearch(root, point, k, resultLeaves,
+                                     resultDistances, count);
+    }
+
+    // Bounded max-heap on distance, stored in the caller's result buffers,
+    // with the items kept parallel to the distances.
+
+    private static void heapPush(double[] dists, Object[] items, int count,
+            double dist, Object item) {
+        int i = count;
+        while (i > 0) {
+            int parent = (i - 1) >> 1;
+            if (dists[parent] >= dist)
+                break;
+            dists[i] = dists[parent];
+            items[i] = items[parent];
+            i = parent;
+        }
+        dists[i] = dist;
+        items[i] = item;
+    }
+
+    private static void heapReplaceTop(double[] dists, Object[] items,
+            int count, double dist, Object item) {
+        siftDown(dists, items, 0, count, dist, item);
+    }
+
+    private static void siftDown(double[] dists, Object[] items, int i,
+            int count, double dist, Object item) {
+        int half = count >> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            if (child + 1 < count && dists[child + 1] > dists[child])
+                child++;
+            if (dist >= dists[child])
+                break;
+            dists[i] = dists[child];
+            items[i] = items[child];
+            i = child;
+        }
+        dists[i] = dist;
+        items[i] = item;
+    }
+
+    // Turn the heap into a list sorted by increasing distance, in place.
+    static void sortHeap(double[] dists, Object[] items, int count) {
+        for (int end = count - 1; end > 0; end--) {
+            double dist = dists[end];
+            Object item = items[end];
+            dists[end] = dists[0];
+            items[end] = items[0];
+            siftDown(dists, items, 0, end, dist, item);
         }
     }
 
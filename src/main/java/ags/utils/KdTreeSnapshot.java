@@ -0,0 +1,119 @@
+package ags.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Saving and loading of compiled K-d trees in a compact binary format.
+ *
+ * A snapshot consists of a header (magic number, format version,
+ * fingerprint, number of dimensions and number of nodes) followed by the
+ * arrays of the {@link CompiledKdTree}, all big-endian. The fingerprint is
+ * supplied by the caller and should identify the data and parameters the
+ * tree was built from; a snapshot whose version or fingerprint doesn't
+ * match is treated as stale.
+ *
+ * Loading reads the file through a read-only memory map, but copies the
+ * arrays onto the heap, and {@link KdTree#restore} then rebuilds the node
+ * objects from them. A snapshot only saves the time of building the tree
+ * again; each process that loads it still holds its own full copy.
+ */
+public final class KdTreeSnapshot {
+    private static final int MAGIC = 0x4B445453; // "KDTS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 4;
+
+    private KdTreeSnapshot() {
+    }
+
+    /**
+     * Save a compiled tree to the given file, along with a fingerprint.
+     * The snapshot is written to a temporary file that is then renamed, so
+     * that a concurrent reader never sees a partly-written snapshot.
+     */
+    public static void save(CompiledKdTree tree, long fingerprint, File file)
+            throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile(file.getName(), ".tmp", dir);
+        try {
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(fingerprint);
+                out.writeInt(tree.getDimensions());
+                out.writeInt(tree.getNodeCount());
+                tree.writeArrays(out);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                // Renaming over an existing file fails on some platforms
+                if (!file.delete() || !temp.renameTo(file))
+                    throw new IOException("Unable to rename " + temp + " to " +
+                                          file);
+            }
+        } finally {
+            if (temp.exists())
+                temp.delete();
+        }
+    }
+
+    /**
+     * Load a compiled tree from the given file. Returns null if the
+     * snapshot was written with a different format version or a different
+     * fingerprint; throws IOException if the file isn't a valid snapshot.
+     */
+    public static CompiledKdTree load(File file, long fingerprint)
+            throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long length = channel.size();
+            if (length < HEADER_SIZE)
+                throw new IOException(file + " is not a K-d tree snapshot");
+            MappedByteBuffer in =
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            if (in.getInt() != MAGIC)
+                throw new IOException(file + " is not a K-d tree snapshot");
+            if (in.getInt() != VERSION || in.getLong() != fingerprint)
+                return null;
+            int dimensions = in.getInt();
+            int nodeCount = in.getInt();
+            if (dimensions <= 0 || nodeCount <= 0 ||
+                    length != HEADER_SIZE +
+                    CompiledKdTree.arraysByteSize(dimensions, nodeCount))
+                throw new IOException("K-d tree snapshot " + file +
+                                      " is truncated or corrupt");
+            return CompiledKdTree.readArrays(in, dimensions, nodeCount);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Compute a 64-bit fingerprint (FNV-1a) of the given strings, e.g. the
+     * parameters and names of the input files a tree is built from.
+     */
+    public static long fingerprint(String... parts) {
+        long hash = 0xcbf29ce484222325L;
+        for (String part : parts) {
+            for (int i = 0; i < part.length(); i++) {
+                char c = part.charAt(i);
+                hash = (hash ^ (c & 0xff)) * 0x100000001b3L;
+                hash = (hash ^ (c >>> 8)) * 0x100000001b3L;
+            }
+            // Separator, so that ("ab", "c") and ("a", "bc") differ
+            hash = (hash ^ 0xff) * 0x100000001b3L;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,260 @@
+package ags.utils;
+
+/**
+ * Statistics on a kd-tree: its shape (depths, leaf occupancy and how
+ * evenly nodes are split), an estimate of the memory it retains, and, if
+ * the root is instrumented (see {@link KdTree#setInstrumented}), build
+ * timings and counts of nodes visited by queries.
+ */
+public class KdTreeStats {
+    // Leaf occupancy is binned by tenths of the bucket size; the last two
+    // bins hold leaves that are exactly full and those that are overfull
+    public static final int OCCUPANCY_BINS = 12;
+
+    private int      nodeCount;
+    private int      leafCount;
+    private int      emptyLeafCount;
+    private int      minOccupancy = Integer.MAX_VALUE;
+    private int      maxOccupancy;
+    private long     totalOccupancy;
+    private int[]    occupancy = new int[OCCUPANCY_BINS];
+    private int[]    leavesAtDepth = new int[16];
+    private int[]    stemsAtDepth = new int[16];
+    private double[] imbalanceAtDepth = new double[16];
+    private int      maxDepth;
+    private long     estimatedBytes;
+    private int      bucketSize;
+
+    private long     balanceNanos;
+    private long     selectNanos;
+    private long     partitionNanos;
+    private long     lookups;
+    private long     lookupNodes;
+    private long     searches;
+    private long     searchNodes;
+
+    private KdTreeStats() {
+    }
+
+    /**
+     * Compute the statistics for the tree under the given node. Build
+     * timings and query counters are only available if it is the root.
+     */
+    public static KdTreeStats compute(KdTree node) {
+        KdTreeStats stats = new KdTreeStats();
+        stats.bucketSize = node.getBucketSize();
+        // Walk without recursion, as trees of many duplicates can be
+        // thousands of levels deep. Each node in pre-order is a child of
+        // the one before or of one of its ancestors, so the depth can be
+        // kept by counting the steps back up, which cost no more in all
+        // than the walk itself.
+        KdTree previous = null;
+        int depth = 0;
+        for (KdTree next : node.preOrder()) {
+            if (previous != null) {
+                for (KdTree p = previous; p != next.parent; p = p.parent)
+                    depth--;
+                depth++;
+            }
+            stats.visit(next, depth);
+            previous = next;
+        }
+        if (node.parent == null) {
+            stats.balanceNanos = node.getBalanceNanos();
+            KdTree.Instruments instruments = node.getInstruments();
+            if (instruments != null) {
+                stats.selectNanos = instruments.selectNanos.get();
+                stats.partitionNanos = instruments.partitionNanos.get();
+                stats.lookups = instruments.lookups.get();
+                stats.lookupNodes = instruments.lookupNodes.get();
+                stats.searches = instruments.searches.get();
+                stats.searchNodes = instruments.searchNodes.get();
+            }
+        }
+        return stats;
+    }
+
+    private void visit(KdTree node, int depth) {
+        if (depth >= leavesAtDepth.length)
+            grow();
+        maxDepth = Math.max(maxDepth, depth);
+        nodeCount++;
+        estimatedBytes += node.estimateBytes();
+        KdTree left = node.getLeft();
+        KdTree right = node.getRight();
+        if (left == null || right == null) {
+            int size = node.size();
+            leafCount++;
+            leavesAtDepth[depth]++;
+            if (size == 0)
+                emptyLeafCount++;
+            minOccupancy = Math.min(minOccupancy, size);
+            maxOccupancy = Math.max(maxOccupancy, size);
+            totalOccupancy += size;
+            if (size > bucketSize)
+                occupancy[OCCUPANCY_BINS - 1]++;
+            else
+                occupancy[(int) (size * 10L / bucketSize)]++;
+            return;
+        }
+        stemsAtDepth[depth]++;
+        if (node.size() > 0)
+            imbalanceAtDepth[depth] +=
+                (double) Math.max(left.size(), right.size()) / node.size();
+    }
+
+    private void grow() {
+        int length = leavesAtDepth.length * 2;
+        int[] leaves = new int[length];
+        int[] stems = new int[length];
+        double[] imbalance = new double[length];
+        System.arraycopy(leavesAtDepth, 0, leaves, 0, leavesAtDepth.length);
+        System.arraycopy(stemsAtDepth, 0, stems, 0, stemsAtDepth.length);
+        System.arraycopy(imbalanceAtDepth, 0, imbalance, 0,
+                         imbalanceAtDepth.length);
+        leavesAtDepth = leaves;
+        stemsAtDepth = stems;
+        imbalanceAtDepth = imbalance;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getLeafCount() {
+        return leafCount;
+    }
+
+    public int getEmptyLeafCount() {
+        return emptyLeafCount;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Get the number of leaves at the given depth, the root being at
+     * depth 0.
+     */
+    public int getLeavesAtDepth(int depth) {
+        return depth <= maxDepth ? leavesAtDepth[depth] : 0;
+    }
+
+    /**
+     * Get the mean split imbalance of the stems at the given depth: the
+     * fraction of a stem's points that went to its larger child, from 0.5
+     * for an even split to 1 for a useless one. NaN if there are no stems
+     * at that depth.
+     */
+    public double getImbalanceAtDepth(int depth) {
+        if (depth > maxDepth || stemsAtDepth[depth] == 0)
+            return Double.NaN;
+        return imbalanceAtDepth[depth] / stemsAtDepth[depth];
+    }
+
+    public int getMinOccupancy() {
+        return leafCount == 0 ? 0 : minOccupancy;
+    }
+
+    public int getMaxOccupancy() {
+        return maxOccupancy;
+    }
+
+    public double getMeanOccupancy() {
+        return leafCount == 0 ? 0 : (double) totalOccupancy / leafCount;
+    }
+
+    /**
+     * Get the number of leaves in the given occupancy bin. Bin i < 10 holds
+     * leaves with at least i and less than i + 1 tenths of the bucket size;
+     * bin 10 holds full leaves and bin 11 overfull ones.
+     */
+    public int getOccupancy(int bin) {
+        return occupancy[bin];
+    }
+
+    /**
+     * Get the number of leaves holding more than the bucket size. This
+     * happens when all their points are identical, so that they cannot be
+     * split, and in trees built by {@link SampledKdTreeBuilder}, whose
+     * leaves are sized from a sample and may exceed the bucket size by up
+     * to the refinement tolerance, or by any amount if refinement is
+     * skipped. {@link ExternalKdTreeBuilder} builds the same tree as
+     * {@link KdTree#balance()}, so only the first case applies to it.
+     */
+    public int getOverfullLeafCount() {
+        return occupancy[OCCUPANCY_BINS - 1];
+    }
+
+    /**
+     * Get a rough estimate of the bytes retained by the tree, including any
+     * point data not yet annihilated.
+     */
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    public long getBalanceNanos() {
+        return balanceNanos;
+    }
+
+    /**
+     * Get the total time spent choosing split values while instrumented.
+     * In a parallel build this is summed over all threads.
+     */
+    public long getSelectNanos() {
+        return selectNanos;
+    }
+
+    /**
+     * Get the total time spent partitioning points between children while
+     * instrumented, summed over all threads.
+     */
+    public long getPartitionNanos() {
+        return partitionNanos;
+    }
+
+    public long getLookups() {
+        return lookups;
+    }
+
+    public long getLookupNodes() {
+        return lookupNodes;
+    }
+
+    public long getSearches() {
+        return searches;
+    }
+
+    public long getSearchNodes() {
+        return searchNodes;
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%d nodes, %d leaves (%d empty), max depth %d, "
+                + "about %d bytes%n", nodeCount, leafCount, emptyLeafCount,
+                maxDepth, estimatedBytes));
+        sb.append(String.format("Leaf occupancy: min %d, mean %.1f, max %d, "
+                + "%d overfull (bucket size %d)%n", getMinOccupancy(),
+                getMeanOccupancy(), maxOccupancy, getOverfullLeafCount(),
+                bucketSize));
+        sb.append("Occupancy by tenths of bucket:");
+        for (int i = 0; i < OCCUPANCY_BINS; i++)
+            sb.append(' ').append(occupancy[i]);
+        sb.append(String.format("%nDepth  leaves  stems  imbalance%n"));
+        for (int depth = 0; depth <= maxDepth; depth++)
+            sb.append(String.format("%5d %7d %6d %10.3f%n", depth,
+                    leavesAtDepth[depth], stemsAtDepth[depth],
+                    getImbalanceAtDepth(depth)));
+        sb.append(String.format("Balance: %.1f ms (select %.1f ms, "
+                + "partition %.1f ms)%n", balanceNanos / 1e6,
+                selectNanos / 1e6, partitionNanos / 1e6));
+        sb.append(String.format("Lookups: %d, %.1f nodes each; searches: %d, "
+                + "%.1f nodes each", lookups,
+                lookups == 0 ? 0.0 : (double) lookupNodes / lookups, searches,
+                searches == 0 ? 0.0 : (double) searchNodes / searches));
+        return sb.toString();
+    }
+}
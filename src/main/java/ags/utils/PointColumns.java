@@ -0,0 +1,135 @@
+package ags.utils;
+
+import java.util.Arrays;
+
+/**
+ * The coordinates of a balanced tree's points in structure-of-arrays
+ * layout, one primitive array per dimension, for computing the distances
+ * from a query to all points of a leaf in one batch.
+ *
+ * The kernel loops over dimensions, and within each over a contiguous
+ * range of points, with no branches or calls in the inner loop, so that
+ * the JIT can unroll and vectorize it. Coordinates that are NaN, which
+ * {@link KdTree#pointDist} skips, are stored as 0 with a mask of 0 in a
+ * parallel array of 1s and 0s, which is only kept for dimensions that
+ * have any. Distances come out bit for bit the same as from pointDist,
+ * so the kernel is only used with the default metric, and only for query
+ * points small enough that masking cannot overflow (see
+ * {@link #canBatch}).
+ */
+final class PointColumns {
+    // Query coordinates no larger than this cannot overflow when squared,
+    // so a masked-out difference is always 0 rather than NaN
+    private static final double MAX_BATCH_COORDINATE = 1e150;
+
+    // Per-thread buffer for the distances to a leaf's points, so that
+    // concurrent searches neither allocate nor share
+    private static final ThreadLocal<double[]> SCRATCH =
+        new ThreadLocal<double[]>();
+
+    private final double[][] columns;
+    private final double[][] valid;
+
+    /**
+     * Copy the coordinates of points[0, count) into columns.
+     */
+    PointColumns(double[][] points, int count, int dimensions) {
+        columns = new double[dimensions][count];
+        valid = new double[dimensions][];
+        for (int d = 0; d < dimensions; d++) {
+            double[] column = columns[d];
+            for (int i = 0; i < count; i++) {
+                double value = points[i][d];
+                if (Double.isNaN(value)) {
+                    if (valid[d] == null) {
+                        valid[d] = new double[count];
+                        Arrays.fill(valid[d], 1.0);
+                    }
+                    valid[d][i] = 0.0;
+                    value = 0.0;
+                }
+                column[i] = value;
+            }
+        }
+    }
+
+    /**
+     * Whether distances from the given point can be computed in a batch:
+     * each coordinate must be NaN (the dimension is skipped) or small
+     * enough to square.
+     */
+    static boolean canBatch(double[] point) {
+        for (int d = 0; d < point.length; d++) {
+            double value = point[d];
+            if (!(Math.abs(value) <= MAX_BATCH_COORDINATE) &&
+                    !Double.isNaN(value))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Whether the given subclass of KdTree keeps the default pointDist(),
+     * which is what the batch kernel computes.
+     */
+    static boolean usesDefaultMetric(Class<?> c) {
+        for (; c != KdTree.class; c = c.getSuperclass()) {
+            try {
+                c.getDeclaredMethod("pointDist", double[].class, double[].class);
+                return false;
+            } catch (NoSuchMethodException e) {
+                // Not overridden here
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compute the squared Euclidean distances from the given point to the
+     * points at [from, to), skipping NaN coordinates as pointDist() does.
+     * The distance to point from + i is returned at index i of a buffer
+     * belonging to the calling thread, which is valid until its next call.
+     */
+    double[] distances(double[] point, int from, int to) {
+        int n = to - from;
+        double[] out = SCRATCH.get();
+        if (out == null || out.length < n) {
+            out = new double[Math.max(n, 64)];
+            SCRATCH.set(out);
+        }
+        for (int i = 0; i < n; i++)
+            out[i] = 0;
+        for (int d = 0; d < point.length; d++) {
+            double q = point[d];
+            if (Double.isNaN(q))
+                continue;
+            double[] column = columns[d];
+            double[] mask = valid[d];
+            if (mask == null) {
+                for (int i = 0; i < n; i++) {
+                    double diff = q - column[from + i];
+                    out[i] += diff * diff;
+                }
+            } else {
+                for (int i = 0; i < n; i++) {
+                    double diff = q - column[from + i];
+                    out[i] += diff * diff * mask[from + i];
+                }
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Estimate the bytes retained by the columns.
+     */
+    long estimateBytes() {
+        long bytes = 0;
+        for (int d = 0; d < columns.length; d++) {
+            bytes += 16 + 8L * columns[d].length;
+            if (valid[d] != null)
+                bytes += 16 + 8L * valid[d].length;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,194 @@
+package ags.utils;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Builds a kd-tree without holding all of its points in memory at once.
+ *
+ * In a first pass over the data, each point is passed to {@link #offer},
+ * which keeps a uniform random sample of bounded size. {@link #build} then
+ * chooses the splits from the sample alone, using a bucket size scaled down
+ * by the sampling rate, so that each leaf should hold about the requested
+ * number of points of the full data. In a second pass, each point is passed
+ * to {@link KdTree#countPoint} to get the true sizes and limits.
+ *
+ * Leaves whose true size came out well above the bucket size can then be
+ * split in an optional third pass: {@link #beginRefinement} selects the
+ * leaves holding more than (1 + tolerance) times the bucket size,
+ * {@link #refinePoint} keeps just the points falling into them, and
+ * {@link #finishRefinement} splits them. Leaves whose points are all
+ * identical are skipped, since they can't be split; however many copies
+ * of a common location the data holds, they are never kept in memory.
+ * Memory use is bounded by the sample capacity plus the points of the
+ * other overfull leaves, which is small unless the sample is too small
+ * for the data.
+ *
+ * If no more points are offered than fit in the sample, the tree is built
+ * from all of them and is the same as one built with
+ * {@link KdTree#balance()}.
+ */
+public class SampledKdTreeBuilder {
+    private final int        sampleCapacity;
+    private final Random     random;
+    private final double[][] sample;
+    private int              sampleCount;
+    private long             seen;
+
+    // During refinement: the root, and the points collected for each
+    // overfull leaf
+    private KdTree                        refining;
+    private Map<KdTree, List<double[]>>   overfull;
+
+    /**
+     * Construct a builder keeping at most the given number of points, with
+     * the random sample determined by the given seed.
+     */
+    public SampledKdTreeBuilder(int sampleCapacity, long seed) {
+        if (sampleCapacity <= 0)
+            throw new IllegalArgumentException("Sample capacity must be positive");
+        this.sampleCapacity = sampleCapacity;
+        this.random = new Random(seed);
+        this.sample = new double[sampleCapacity][];
+    }
+
+    /**
+     * Offer a point to the sample. Each point offered so far has the same
+     * chance of being in the sample.
+     */
+    public void offer(double[] location) {
+        seen++;
+        if (sampleCount < sampleCapacity) {
+            sample[sampleCount++] = location;
+        } else {
+            long slot = (long) (random.nextDouble() * seen);
+            if (slot < sampleCapacity)
+                sample[(int) slot] = location;
+        }
+    }
+
+    /**
+     * Get the number of points offered so far.
+     */
+    public long getSeen() {
+        return seen;
+    }
+
+    /**
+     * Get the number of points in the sample.
+     */
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * Get the bucket size to use when splitting the sample, so that a leaf
+     * of the sampled tree stands for about the given bucket size of points.
+     */
+    public int getSampleBucketSize(int bucketSize) {
+        if (seen <= sampleCount)
+            return bucketSize;
+        return Math.max(1, (int) Math.round(
+            (double) bucketSize * sampleCount / seen));
+    }
+
+    /**
+     * Build the tree under the given root, which must be newly constructed
+     * and determines the bucket size and split method. If all points were
+     * kept, the tree holds them and has its true sizes. Otherwise it holds
+     * no point data and all sizes are zero, ready for the points to be
+     * counted into it with {@link KdTree#countPoint}.
+     */
+    public void build(KdTree root) {
+        if (seen <= sampleCount) {
+            for (int i = 0; i < sampleCount; i++)
+                root.addPoint(sample[i]);
+            root.balance();
+            return;
+        }
+        KdTree sampled = new KdTree(root.getDimensions(),
+            getSampleBucketSize(root.getBucketSize()), root.getSplitMethod());
+        for (int i = 0; i < sampleCount; i++)
+            sampled.addPoint(sample[i]);
+        sampled.balance();
+        root.restore(sampled.compile());
+        root.resetSizes();
+    }
+
+    /**
+     * Discard the sample, once the tree has been built.
+     */
+    public void clearSample() {
+        for (int i = 0; i < sampleCount; i++)
+            sample[i] = null;
+    }
+
+    /**
+     * Begin a pass to split the leaves whose true size is more than
+     * (1 + tolerance) times the bucket size, after all points have been
+     * counted into the tree. Leaves of zero width are left as they are.
+     * Returns the number of leaves to split; if none, there is no need
+     * for the pass.
+     */
+    public int beginRefinement(KdTree root, double tolerance) {
+        refining = root;
+        overfull = new IdentityHashMap<KdTree, List<double[]>>();
+        double limit = (1 + tolerance) * root.getBucketSize();
+        // Nodes no larger than the limit are returned whole, so any node
+        // above it is an overfull leaf
+        for (KdTree leaf : root.getNodesToCutoff((int) limit)) {
+            if (leaf.size() > limit && !isSingular(leaf))
+                overfull.put(leaf, new ArrayList<double[]>(leaf.size()));
+        }
+        return overfull.size();
+    }
+
+    /**
+     * Whether the counted limits of a leaf show that all its points are
+     * the same, so that splitting it would leave it as it is. NaN
+     * coordinates count as equal, as they do when building in memory.
+     */
+    private static boolean isSingular(KdTree leaf) {
+        for (int i = 0; i < leaf.getDimensions(); i++) {
+            if (Double.compare(leaf.minLimit[i], leaf.maxLimit[i]) != 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Pass a point during refinement, keeping it if it falls in an
+     * overfull leaf.
+     */
+    public void refinePoint(double[] location) {
+        List<double[]> points = overfull.get(refining.getLeaf(location));
+        if (points != null)
+            points.add(location);
+    }
+
+    /**
+     * Split the overfull leaves using the points passed to
+     * {@link #refinePoint}, which must be the same as those counted into
+     * the tree. Returns the number of leaves split.
+     */
+    public int finishRefinement() {
+        int split = 0;
+        for (Map.Entry<KdTree, List<double[]>> entry : overfull.entrySet()) {
+            KdTree leaf = entry.getKey();
+            List<double[]> points = entry.getValue();
+            if (points.size() != leaf.size())
+                throw new IllegalStateException("Leaf counted " + leaf.size() +
+                    " points but was passed " + points.size());
+            refining.splitLeaf(leaf,
+                points.toArray(new double[points.size()][]), points.size());
+            if (leaf.getLeft() != null)
+                split++;
+        }
+        refining = null;
+        overfull = null;
+        return split;
+    }
+}
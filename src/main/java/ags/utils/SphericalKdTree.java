@@ -0,0 +1,93 @@
+package ags.utils;
+
+/**
+ * A kd-tree over points on the earth's surface, indexed as 3-dimensional
+ * unit vectors rather than as raw (latitude, longitude) pairs.
+ *
+ * Distances between unit vectors are squared chord lengths, which increase
+ * monotonically with great-circle distance, and the distance from a point
+ * to a node's bounding box is a true lower bound on the chord length to
+ * any point inside it. So the inherited {@link #pointDist} and
+ * {@link #pointRegionDist} prune correctly near the poles and across the
+ * antimeridian, which has no special status in this representation.
+ * Use {@link #toVector} to convert query coordinates, and
+ * {@link #angularDistance} to convert distances back into angles.
+ */
+public class SphericalKdTree extends KdTree {
+    /**
+     * Construct a spherical kd-tree with the given bucket size and split
+     * method.
+     */
+    public SphericalKdTree(int bucketSize, SplitMethod splitMethod) {
+        super(3, bucketSize, splitMethod);
+    }
+
+    /**
+     * Convert a coordinate, in degrees, into a unit vector, stored in the
+     * given array (which must hold at least 3 elements).
+     */
+    public static void toVector(double lat, double lng, double[] vector) {
+        double phi = Math.toRadians(lat);
+        double lambda = Math.toRadians(lng);
+        double cosPhi = Math.cos(phi);
+        vector[0] = cosPhi * Math.cos(lambda);
+        vector[1] = cosPhi * Math.sin(lambda);
+        vector[2] = Math.sin(phi);
+    }
+
+    /**
+     * Convert a coordinate, in degrees, into a new unit vector.
+     */
+    public static double[] toVector(double lat, double lng) {
+        double[] vector = new double[3];
+        toVector(lat, lng, vector);
+        return vector;
+    }
+
+    /**
+     * Convert a distance as returned by the queries on this tree (a squared
+     * chord length) into an angular distance in radians.
+     */
+    public static double angularDistance(double squaredChord) {
+        double chord = Math.sqrt(squaredChord);
+        return 2 * Math.asin(Math.min(1.0, chord / 2));
+    }
+
+    /**
+     * Convert an angular distance in radians into a squared chord length,
+     * e.g. for use as the radius of {@link #withinRadius}.
+     */
+    public static double squaredChord(double angle) {
+        double chord = 2 * Math.sin(Math.min(Math.PI, angle) / 2);
+        return chord * chord;
+    }
+
+    /**
+     * Add a point given as a coordinate in degrees.
+     */
+    public void addCoord(double lat, double lng) {
+        addPoint(toVector(lat, lng));
+    }
+
+    /**
+     * Get the leaf containing the given coordinate, in degrees.
+     */
+    public KdTree getLeafForCoord(double lat, double lng) {
+        double phi = Math.toRadians(lat);
+        double lambda = Math.toRadians(lng);
+        double cosPhi = Math.cos(phi);
+        double x = cosPhi * Math.cos(lambda);
+        double y = cosPhi * Math.sin(lambda);
+        double z = Math.sin(phi);
+        KdTree node = this;
+        while (node.getLeft() != null && node.getRight() != null) {
+            int dim = node.getSplitDimension();
+            double value = dim == 0 ? x : dim == 1 ? y : z;
+            if (value <= node.getSplitValue())
+                node = node.getLeft();
+            else
+                node = node.getRight();
+        }
+        return node;
+    }
+}
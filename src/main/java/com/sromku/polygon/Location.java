@@ -0,0 +1,22 @@
+package com.sromku.polygon;
+
+/**
+ * Where a point lies relative to a polygon, as found by {@link PreparedPolygon#locate(double, double, double)}
+ */
+public enum Location
+{
+	/**
+	 * Inside the polygon, and farther than the tolerance from its edges
+	 */
+	INSIDE,
+
+	/**
+	 * Outside the polygon, and farther than the tolerance from its edges
+	 */
+	OUTSIDE,
+
+	/**
+	 * Within the tolerance of an edge, on either side
+	 */
+	ON_EDGE
+}
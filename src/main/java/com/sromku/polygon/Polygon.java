@@ -13,6 +13,7 @@ public class Polygon
 {
 	private final BoundingBox _boundingBox;
 	private final List<Line> _sides;
+	private PreparedPolygon _index = null;
 
 	private Polygon(List<Line> sides, BoundingBox boundingBox)
 	{
@@ -43,6 +44,7 @@ public class Polygon
 
 		private boolean _firstPoint = true;
 		private boolean _isClosed = false;
+		private boolean _indexEdges = false;
 
 		/**
 		 * Add vertex points of the polygon.<br>
@@ -90,6 +92,19 @@ public class Polygon
 			return this;
 		}
 
+		/**
+		 * Index the edges of the polygon when it is built, so that {@link Polygon#contains(Point)} only looks at the edges near the
+		 * point's horizontal line rather than at all of them. Worthwhile for polygons with many edges that are tested many times, such as
+		 * coastlines and borders. An indexed polygon answers as a {@link PreparedPolygon} does.
+		 * 
+		 * @return The builder
+		 */
+		public Builder indexEdges()
+		{
+			_indexEdges = true;
+			return this;
+		}
+
 		/**
 		 * Build the instance of the polygon shape.
 		 * 
@@ -107,6 +122,10 @@ public class Polygon
 			}
 
 			Polygon polygon = new Polygon(_sides, _boundingBox);
+			if (_indexEdges)
+			{
+				polygon._index = new PreparedPolygon(polygon, true);
+			}
 			return polygon;
 		}
 
@@ -168,6 +187,10 @@ public class Polygon
 	 */
 	public boolean contains(Point point)
 	{
+		if (_index != null)
+		{
+			return _index.contains(point.x, point.y);
+		}
 		if (inBoundingBox(point))
 		{
 			Line ray = createRay(point);
@@ -192,6 +215,24 @@ public class Polygon
 		return false;
 	}
 
+	/**
+	 * Find where the given point lies relative to the polygon, treating points within the given distance of an edge as on it.<br>
+	 * Unless the polygon was built with {@link Builder#indexEdges()}, its edges are prepared anew on each call; to locate many points,
+	 * use a {@link PreparedPolygon}.
+	 * 
+	 * @param point
+	 *            The point to locate
+	 * @param epsilon
+	 *            The distance from an edge within which a point is on it
+	 * @return The location of the point
+	 * @see PreparedPolygon#locate(double, double, double)
+	 */
+	public Location locate(Point point, double epsilon)
+	{
+		PreparedPolygon prepared = _index != null ? _index : new PreparedPolygon(this, false);
+		return prepared.locate(point.x, point.y, epsilon);
+	}
+
 	public List<Line> getSides()
 	{
 		return _sides;
@@ -0,0 +1,233 @@
+package com.sromku.polygon;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A spatial index over many polygons, for finding the ones containing a point without testing them all.<br>
+ * The index is an R-tree over the polygons' bounding boxes, bulk-loaded with Sort-Tile-Recursive packing: at each level the entries
+ * are sorted into vertical slices by the x of their centres, each slice is sorted by y, and runs of {@link #NODE_CAPACITY} entries
+ * become the nodes of the level above. A query descends only into the nodes whose boxes contain it, so its cost depends on the number
+ * of polygons near the point rather than on the total number.<br>
+ * Polygons are identified by their position in the list the index was built from, and queries return them in that order.
+ */
+public class PolygonIndex
+{
+	/**
+	 * The most children of a node
+	 */
+	public static final int NODE_CAPACITY = 16;
+
+	private final PreparedPolygon[] _polygons;
+
+	// Boxes of the polygons (slots 0 to n - 1) and then of the nodes, the root last. The children of node slot s are the slots
+	// _entries[_start[s - n]] to _entries[_start[s - n + 1] - 1], nodes being numbered level by level from the leaves up.
+	private double[] _xMin;
+	private double[] _yMin;
+	private double[] _xMax;
+	private double[] _yMax;
+	private int[] _entries;
+	private int[] _start;
+	private int _slots;
+	private final int _root;
+
+	/**
+	 * Build the index
+	 *
+	 * @param polygons
+	 *            The polygons to index
+	 */
+	public PolygonIndex(List<PreparedPolygon> polygons)
+	{
+		int n = polygons.size();
+		_polygons = polygons.toArray(new PreparedPolygon[n]);
+
+		// A tree with n leaf entries has fewer than n / (NODE_CAPACITY - 1) + levels nodes
+		int capacity = n + n / (NODE_CAPACITY - 1) + 32;
+		_xMin = new double[capacity];
+		_yMin = new double[capacity];
+		_xMax = new double[capacity];
+		_yMax = new double[capacity];
+		_entries = new int[capacity];
+		_start = new int[capacity - n + 1];
+		for (int i = 0; i < n; i++)
+		{
+			PreparedPolygon polygon = _polygons[i];
+			_xMin[i] = polygon.getXMin();
+			_yMin[i] = polygon.getYMin();
+			_xMax[i] = polygon.getXMax();
+			_yMax[i] = polygon.getYMax();
+		}
+		_slots = n;
+
+		if (n == 0)
+		{
+			_root = -1;
+			return;
+		}
+
+		Integer[] level = new Integer[n];
+		for (int i = 0; i < n; i++)
+		{
+			level[i] = i;
+		}
+		int entryCount = 0;
+		while (true)
+		{
+			sortTiles(level);
+			int firstNode = _slots;
+			for (int from = 0; from < level.length; from += NODE_CAPACITY)
+			{
+				int to = Math.min(from + NODE_CAPACITY, level.length);
+				int node = _slots++;
+				_start[node - n] = entryCount;
+				_xMin[node] = Double.POSITIVE_INFINITY;
+				_yMin[node] = Double.POSITIVE_INFINITY;
+				_xMax[node] = Double.NEGATIVE_INFINITY;
+				_yMax[node] = Double.NEGATIVE_INFINITY;
+				for (int i = from; i < to; i++)
+				{
+					int child = level[i];
+					_entries[entryCount++] = child;
+					_xMin[node] = Math.min(_xMin[node], _xMin[child]);
+					_yMin[node] = Math.min(_yMin[node], _yMin[child]);
+					_xMax[node] = Math.max(_xMax[node], _xMax[child]);
+					_yMax[node] = Math.max(_yMax[node], _yMax[child]);
+				}
+				_start[node - n + 1] = entryCount;
+			}
+			if (_slots - firstNode == 1)
+			{
+				break;
+			}
+			level = new Integer[_slots - firstNode];
+			for (int i = 0; i < level.length; i++)
+			{
+				level[i] = firstNode + i;
+			}
+		}
+		_root = _slots - 1;
+	}
+
+	/**
+	 * Sort the given slots for packing: into vertical slices of about sqrt(count / NODE_CAPACITY) nodes each by the x of their centres,
+	 * and each slice by the y of their centres.
+	 */
+	private void sortTiles(Integer[] slots)
+	{
+		int nodes = (slots.length + NODE_CAPACITY - 1) / NODE_CAPACITY;
+		int sliceCount = (int) Math.ceil(Math.sqrt(nodes));
+		int sliceSize = ((nodes + sliceCount - 1) / sliceCount) * NODE_CAPACITY;
+		Arrays.sort(slots, new Comparator<Integer>()
+		{
+			public int compare(Integer a, Integer b)
+			{
+				return Double.compare(_xMin[a] + _xMax[a], _xMin[b] + _xMax[b]);
+			}
+		});
+		Comparator<Integer> byY = new Comparator<Integer>()
+		{
+			public int compare(Integer a, Integer b)
+			{
+				return Double.compare(_yMin[a] + _yMax[a], _yMin[b] + _yMax[b]);
+			}
+		};
+		for (int from = 0; from < slots.length; from += sliceSize)
+		{
+			Arrays.sort(slots, from, Math.min(from + sliceSize, slots.length), byY);
+		}
+	}
+
+	/**
+	 * Get the number of polygons in the index
+	 *
+	 * @return The number of polygons
+	 */
+	public int size()
+	{
+		return _polygons.length;
+	}
+
+	/**
+	 * Get the polygon at the given position
+	 *
+	 * @param i
+	 *            The position of the polygon in the list the index was built from
+	 * @return The polygon
+	 */
+	public PreparedPolygon getPolygon(int i)
+	{
+		return _polygons[i];
+	}
+
+	/**
+	 * Find the polygons whose bounding boxes intersect the given box. These are the only ones that can contain any point in the box.
+	 *
+	 * @return The positions of the polygons, in increasing order
+	 */
+	public int[] candidates(double xMin, double yMin, double xMax, double yMax)
+	{
+		int[] found = new int[8];
+		int count = 0;
+		if (_root >= 0)
+		{
+			int[] stack = new int[64];
+			int depth = 0;
+			stack[depth++] = _root;
+			int n = _polygons.length;
+			while (depth > 0)
+			{
+				int slot = stack[--depth];
+				if (_xMin[slot] > xMax || _xMax[slot] < xMin || _yMin[slot] > yMax || _yMax[slot] < yMin)
+				{
+					continue;
+				}
+				if (slot < n)
+				{
+					if (count == found.length)
+					{
+						found = Arrays.copyOf(found, count * 2);
+					}
+					found[count++] = slot;
+					continue;
+				}
+				int end = _start[slot - n + 1];
+				for (int i = _start[slot - n]; i < end; i++)
+				{
+					if (depth == stack.length)
+					{
+						stack = Arrays.copyOf(stack, depth * 2);
+					}
+					stack[depth++] = _entries[i];
+				}
+			}
+		}
+		int[] result = Arrays.copyOf(found, count);
+		Arrays.sort(result);
+		return result;
+	}
+
+	/**
+	 * Find the polygons containing the given point.
+	 *
+	 * @param x
+	 *            The x coordinate of the point
+	 * @param y
+	 *            The y coordinate of the point
+	 * @return The positions of the polygons, in increasing order
+	 */
+	public int[] containing(double x, double y)
+	{
+		int[] candidates = candidates(x, y, x, y);
+		int count = 0;
+		for (int i : candidates)
+		{
+			if (_polygons[i].contains(x, y))
+			{
+				candidates[count++] = i;
+			}
+		}
+		return Arrays.copyOf(candidates, count);
+	}
+}
@@ -0,0 +1,578 @@
+package com.sromku.polygon;
+
+import java.util.List;
+
+/**
+ * A polygon prepared for fast, repeated containment tests.<br>
+ * The edges are kept in primitive arrays, each oriented upwards and with its extent precomputed, and the test is a crossing-number test
+ * with a horizontal ray, which allocates nothing and does no division. Horizontal edges can never cross the ray, so they are dropped.
+ * Holes (see {@link Polygon.Builder#close()}) are handled as by {@link Polygon#contains(Point)}.<br>
+ * The answers are the same as those of {@link Polygon#contains(Point)}, except for points lying (to within rounding) on an edge, or on
+ * the line from the polygon's ray origin through a vertex, which either test may count either way.<br>
+ * Polygons with many edges can also be indexed: the y-range of the polygon is cut into horizontal slabs, each listing the edges whose
+ * y-extent overlaps it, so that a test only looks at the edges near the query's horizontal line instead of at all of them. The
+ * horizontal edges, which only {@link #locate(double, double, double)} needs, are listed by the slab of their y.<br>
+ * A raster grid can also be laid over the bounding box, with each cell classified as inside, outside or boundary. A cell is a boundary
+ * cell if any edge passes within rounding distance of it; the rest contain no edge, so every point in them gets the same answer, which
+ * is looked up instead of tested. Only points in boundary cells get the exact test, so the answers are the same as without the grid. The
+ * grid takes one byte per cell, up to the number of cells asked for.<br>
+ * {@link #locate(double, double, double)} also reports points within a given distance of an edge, so that a point on the border
+ * between two polygons can be assigned to both with one test each.
+ */
+public class PreparedPolygon
+{
+	// Polygons with fewer edges than this are not indexed by default, as scanning them all is as fast
+	private static final int INDEX_THRESHOLD = 64;
+	// Fewer slabs are used if edges would be listed more than this many times over on average
+	private static final int MAX_SLAB_REFERENCES = 4;
+
+	private final double _xMin;
+	private final double _xMax;
+	private final double _yMin;
+	private final double _yMax;
+
+	// Edge i runs from (_x0[i], _y0[i]) upwards to (_x0[i] + _dx[i], _y1[i]), with _y0[i] < _y1[i]
+	private final double[] _x0;
+	private final double[] _y0;
+	private final double[] _y1;
+	private final double[] _dx;
+	private final double[] _dy;
+	private final int _edgeCount;
+
+	// Horizontal edge i runs from (_flatXMin[i], _flatY[i]) to (_flatXMax[i], _flatY[i]). Only used by locate(). If indexed, they are
+	// ordered by slab, those in slab s being _flatSlabStarts[s] to _flatSlabStarts[s + 1] - 1.
+	private final double[] _flatY;
+	private final double[] _flatXMin;
+	private final double[] _flatXMax;
+	private final int _flatCount;
+
+	// Slab index: the edges overlapping slab s are _slabEdges[_slabStarts[s]] to _slabEdges[_slabStarts[s + 1] - 1], in edge order.
+	// Null if not indexed.
+	private int[] _slabStarts;
+	private int[] _slabEdges;
+	private int[] _flatSlabStarts;
+	private int _slabCount;
+	private double _slabScale;
+
+	// Raster grid of _columns by _rows cells over the bounding box, cell (i, j) at _cells[j * _columns + i], or null
+	private static final byte UNCLASSIFIED = 0;
+	private static final byte INSIDE = 1;
+	private static final byte OUTSIDE = 2;
+	private static final byte BOUNDARY = 3;
+	private byte[] _cells;
+	private int _columns;
+	private int _rows;
+	private double _columnScale;
+	private double _rowScale;
+
+	/**
+	 * Prepare the given polygon, indexing its edges if it has many
+	 *
+	 * @param polygon
+	 *            The polygon
+	 */
+	public PreparedPolygon(Polygon polygon)
+	{
+		this(polygon, polygon.getSides().size() >= INDEX_THRESHOLD);
+	}
+
+	/**
+	 * Prepare the given polygon
+	 *
+	 * @param polygon
+	 *            The polygon
+	 * @param indexed
+	 *            Whether to index the edges by y-slab
+	 */
+	public PreparedPolygon(Polygon polygon, boolean indexed)
+	{
+		this(polygon, indexed, 0);
+	}
+
+	/**
+	 * Prepare the given polygon
+	 *
+	 * @param polygon
+	 *            The polygon
+	 * @param indexed
+	 *            Whether to index the edges by y-slab
+	 * @param rasterCells
+	 *            The most cells of the raster grid, or 0 for none
+	 */
+	public PreparedPolygon(Polygon polygon, boolean indexed, int rasterCells)
+	{
+		List<Line> sides = polygon.getSides();
+		int n = sides.size();
+		_x0 = new double[n];
+		_y0 = new double[n];
+		_y1 = new double[n];
+		_dx = new double[n];
+		_dy = new double[n];
+		_flatY = new double[n];
+		_flatXMin = new double[n];
+		_flatXMax = new double[n];
+
+		double xMin = Double.POSITIVE_INFINITY, xMax = Double.NEGATIVE_INFINITY;
+		double yMin = Double.POSITIVE_INFINITY, yMax = Double.NEGATIVE_INFINITY;
+		int count = 0;
+		int flatCount = 0;
+		for (Line side : sides)
+		{
+			Point start = side.getStart();
+			Point end = side.getEnd();
+			xMin = Math.min(xMin, Math.min(start.x, end.x));
+			xMax = Math.max(xMax, Math.max(start.x, end.x));
+			yMin = Math.min(yMin, Math.min(start.y, end.y));
+			yMax = Math.max(yMax, Math.max(start.y, end.y));
+
+			if (start.y == end.y)
+			{
+				_flatY[flatCount] = start.y;
+				_flatXMin[flatCount] = Math.min(start.x, end.x);
+				_flatXMax[flatCount] = Math.max(start.x, end.x);
+				flatCount++;
+				continue;
+			}
+			Point low = start.y < end.y ? start : end;
+			Point high = start.y < end.y ? end : start;
+			_x0[count] = low.x;
+			_y0[count] = low.y;
+			_y1[count] = high.y;
+			_dx[count] = (double) high.x - low.x;
+			_dy[count] = (double) high.y - low.y;
+			count++;
+		}
+		_edgeCount = count;
+		_flatCount = flatCount;
+		_xMin = xMin;
+		_xMax = xMax;
+		_yMin = yMin;
+		_yMax = yMax;
+
+		if (indexed && _edgeCount > 0)
+		{
+			buildIndex();
+		}
+		if (rasterCells > 0 && _xMax > _xMin && _yMax > _yMin)
+		{
+			buildRaster(sides, rasterCells);
+		}
+	}
+
+	/**
+	 * Build the slab index, with about one slab per edge, but fewer if long edges would be listed in too many slabs
+	 */
+	private void buildIndex()
+	{
+		int slabs = _edgeCount;
+		long references;
+		while (true)
+		{
+			_slabCount = slabs;
+			_slabScale = slabs / (_yMax - _yMin);
+			references = 0;
+			for (int i = 0; i < _edgeCount; i++)
+			{
+				references += slabOf(_y1[i]) - slabOf(_y0[i]) + 1;
+			}
+			if (slabs == 1 || references <= (long) MAX_SLAB_REFERENCES * _edgeCount)
+			{
+				break;
+			}
+			slabs /= 2;
+		}
+
+		// Count the edges in each slab, then fill them in, in edge order
+		_slabStarts = new int[slabs + 1];
+		for (int i = 0; i < _edgeCount; i++)
+		{
+			int last = slabOf(_y1[i]);
+			for (int s = slabOf(_y0[i]); s <= last; s++)
+			{
+				_slabStarts[s + 1]++;
+			}
+		}
+		for (int s = 0; s < slabs; s++)
+		{
+			_slabStarts[s + 1] += _slabStarts[s];
+		}
+		_slabEdges = new int[(int) references];
+		int[] next = new int[slabs];
+		System.arraycopy(_slabStarts, 0, next, 0, slabs);
+		for (int i = 0; i < _edgeCount; i++)
+		{
+			int last = slabOf(_y1[i]);
+			for (int s = slabOf(_y0[i]); s <= last; s++)
+			{
+				_slabEdges[next[s]++] = i;
+			}
+		}
+
+		// Sort the horizontal edges into the slabs holding their y
+		_flatSlabStarts = new int[slabs + 1];
+		for (int i = 0; i < _flatCount; i++)
+		{
+			_flatSlabStarts[slabOf(_flatY[i]) + 1]++;
+		}
+		for (int s = 0; s < slabs; s++)
+		{
+			_flatSlabStarts[s + 1] += _flatSlabStarts[s];
+		}
+		double[] flatY = _flatY.clone();
+		double[] flatXMin = _flatXMin.clone();
+		double[] flatXMax = _flatXMax.clone();
+		System.arraycopy(_flatSlabStarts, 0, next, 0, slabs);
+		for (int i = 0; i < _flatCount; i++)
+		{
+			int j = next[slabOf(flatY[i])]++;
+			_flatY[j] = flatY[i];
+			_flatXMin[j] = flatXMin[i];
+			_flatXMax[j] = flatXMax[i];
+		}
+	}
+
+	/**
+	 * Get the slab holding the given y, which must be within the bounding box. Never decreases as y increases, so an edge spanning
+	 * y lies in the slabs from that of its lower end to that of its upper end.
+	 */
+	private int slabOf(double y)
+	{
+		int slab = (int) ((y - _yMin) * _slabScale);
+		return slab < _slabCount ? slab : _slabCount - 1;
+	}
+
+	/**
+	 * Build the raster grid, with cells about as square as the bounding box allows
+	 */
+	private void buildRaster(List<Line> sides, int maxCells)
+	{
+		double width = _xMax - _xMin;
+		double height = _yMax - _yMin;
+		_columns = (int) Math.max(1, Math.min(maxCells, Math.round(Math.sqrt(maxCells * width / height))));
+		_rows = Math.max(1, maxCells / _columns);
+		_columnScale = _columns / width;
+		_rowScale = _rows / height;
+		_cells = new byte[_columns * _rows];
+
+		// Mark the cells each edge passes through, widened by a margin well above the rounding error of the exact test, so that a point
+		// it could get wrong is never in a non-boundary cell. Row by row: clip the edge to the row's band and mark the cells spanning
+		// the clipped x range.
+		double margin = 1e-9 * (width + height + Math.abs(_xMin) + Math.abs(_yMin));
+		for (Line side : sides)
+		{
+			double xa = side.getStart().x, ya = side.getStart().y;
+			double xb = side.getEnd().x, yb = side.getEnd().y;
+			if (ya > yb)
+			{
+				double t = xa; xa = xb; xb = t;
+				t = ya; ya = yb; yb = t;
+			}
+			int lastRow = row(yb + margin);
+			for (int j = row(ya - margin); j <= lastRow; j++)
+			{
+				double bandLow = Math.max(ya, _yMin + j / _rowScale - margin);
+				double bandHigh = Math.min(yb, _yMin + (j + 1) / _rowScale + margin);
+				double xLow, xHigh;
+				if (ya == yb)
+				{
+					xLow = xa;
+					xHigh = xb;
+				}
+				else
+				{
+					xLow = xa + (bandLow - ya) * (xb - xa) / (yb - ya);
+					xHigh = xa + (bandHigh - ya) * (xb - xa) / (yb - ya);
+				}
+				int last = column(Math.max(xLow, xHigh) + margin);
+				for (int i = column(Math.min(xLow, xHigh) - margin); i <= last; i++)
+				{
+					_cells[j * _columns + i] = BOUNDARY;
+				}
+			}
+		}
+
+		// Classify the other cells. A run of cells between boundary cells in a row contains no edge, so it is all inside or all
+		// outside; test the centre of its first cell.
+		for (int j = 0; j < _rows; j++)
+		{
+			double y = _yMin + (j + 0.5) / _rowScale;
+			byte state = UNCLASSIFIED;
+			for (int i = 0; i < _columns; i++)
+			{
+				int cell = j * _columns + i;
+				if (_cells[cell] == BOUNDARY)
+				{
+					state = UNCLASSIFIED;
+					continue;
+				}
+				if (state == UNCLASSIFIED)
+				{
+					state = crosses(_xMin + (i + 0.5) / _columnScale, y) ? INSIDE : OUTSIDE;
+				}
+				_cells[cell] = state;
+			}
+		}
+	}
+
+	private int column(double x)
+	{
+		int column = (int) ((x - _xMin) * _columnScale);
+		return column < 0 ? 0 : column < _columns ? column : _columns - 1;
+	}
+
+	private int row(double y)
+	{
+		int row = (int) ((y - _yMin) * _rowScale);
+		return row < 0 ? 0 : row < _rows ? row : _rows - 1;
+	}
+
+	/**
+	 * Check if the the given point is inside of the polygon.<br>
+	 *
+	 * @param x
+	 *            The x coordinate of the point
+	 * @param y
+	 *            The y coordinate of the point
+	 * @return <code>True</code> if the point is inside the polygon, otherwise return <code>False</code>
+	 */
+	public boolean contains(double x, double y)
+	{
+		if (x < _xMin || x > _xMax || y < _yMin || y > _yMax)
+		{
+			return false;
+		}
+		if (_cells != null)
+		{
+			byte state = _cells[row(y) * _columns + column(x)];
+			if (state != BOUNDARY)
+			{
+				return state == INSIDE;
+			}
+		}
+		return crosses(x, y);
+	}
+
+	/**
+	 * Find where the given point lies relative to the polygon, treating points within the given distance of an edge as on it.<br>
+	 * This takes one pass over the edges near the point, testing each for both crossing and distance, so it is about as fast as
+	 * {@link #contains(double, double)}. Points that are not on an edge get the same answer as from contains.
+	 *
+	 * @param x
+	 *            The x coordinate of the point
+	 * @param y
+	 *            The y coordinate of the point
+	 * @param epsilon
+	 *            The distance from an edge within which a point is on it
+	 * @return {@link Location#ON_EDGE} if the point is within epsilon of an edge, otherwise {@link Location#INSIDE} or
+	 *         {@link Location#OUTSIDE}
+	 */
+	public Location locate(double x, double y, double epsilon)
+	{
+		if (x < _xMin - epsilon || x > _xMax + epsilon || y < _yMin - epsilon || y > _yMax + epsilon)
+		{
+			return Location.OUTSIDE;
+		}
+		if (_cells != null && x >= _xMin && x <= _xMax && y >= _yMin && y <= _yMax)
+		{
+			// No edge passes through a non-boundary cell, so none is within epsilon of a point farther than that from its sides
+			int column = column(x);
+			int row = row(y);
+			byte state = _cells[row * _columns + column];
+			if (state != BOUNDARY)
+			{
+				double left = x - (_xMin + column / _columnScale);
+				double right = _xMin + (column + 1) / _columnScale - x;
+				double bottom = y - (_yMin + row / _rowScale);
+				double top = _yMin + (row + 1) / _rowScale - y;
+				if (Math.min(Math.min(left, right), Math.min(bottom, top)) > epsilon)
+				{
+					return state == INSIDE ? Location.INSIDE : Location.OUTSIDE;
+				}
+			}
+		}
+
+		// Edges within epsilon are in the slabs from y - epsilon to y + epsilon, and the ones crossing the ray in the slab of y. An
+		// edge in several slabs may be checked for distance more than once, but is counted for crossing only in that one.
+		int firstSlab = 0, lastSlab = 0, slab = 0;
+		int flatStart = 0, flatEnd = _flatCount;
+		if (_slabStarts != null)
+		{
+			firstSlab = slabOf(Math.max(y - epsilon, _yMin));
+			lastSlab = slabOf(Math.min(y + epsilon, _yMax));
+			slab = slabOf(Math.max(Math.min(y, _yMax), _yMin));
+			flatStart = _flatSlabStarts[firstSlab];
+			flatEnd = _flatSlabStarts[lastSlab + 1];
+		}
+
+		double epsilon2 = epsilon * epsilon;
+		for (int i = flatStart; i < flatEnd; i++)
+		{
+			double dy = y - _flatY[i];
+			double dx = Math.max(0, Math.max(_flatXMin[i] - x, x - _flatXMax[i]));
+			if (dx * dx + dy * dy <= epsilon2)
+			{
+				return Location.ON_EDGE;
+			}
+		}
+
+		boolean inside = false;
+		for (int s = firstSlab; s <= lastSlab; s++)
+		{
+			int start = _slabStarts == null ? 0 : _slabStarts[s];
+			int end = _slabStarts == null ? _edgeCount : _slabStarts[s + 1];
+			for (int j = start; j < end; j++)
+			{
+				int i = _slabStarts == null ? j : _slabEdges[j];
+				if (nearEdge(i, x, y, epsilon, epsilon2))
+				{
+					return Location.ON_EDGE;
+				}
+				if (s == slab && y >= _y0[i] && y < _y1[i] && (x - _x0[i]) * _dy[i] < (y - _y0[i]) * _dx[i])
+				{
+					inside = !inside;
+				}
+			}
+		}
+		return inside ? Location.INSIDE : Location.OUTSIDE;
+	}
+
+	/**
+	 * Check if the given point is within epsilon of edge i
+	 */
+	private boolean nearEdge(int i, double x, double y, double epsilon, double epsilon2)
+	{
+		if (y < _y0[i] - epsilon || y > _y1[i] + epsilon)
+		{
+			return false;
+		}
+		double x1 = _x0[i] + _dx[i];
+		if (x < Math.min(_x0[i], x1) - epsilon || x > Math.max(_x0[i], x1) + epsilon)
+		{
+			return false;
+		}
+		// Distance to the closest point of the edge, at fraction t along it
+		double px = x - _x0[i];
+		double py = y - _y0[i];
+		double t = (px * _dx[i] + py * _dy[i]) / (_dx[i] * _dx[i] + _dy[i] * _dy[i]);
+		t = Math.max(0, Math.min(1, t));
+		double ex = px - t * _dx[i];
+		double ey = py - t * _dy[i];
+		return ex * ex + ey * ey <= epsilon2;
+	}
+
+	/**
+	 * The exact test: whether an odd number of edges cross the ray from the given point to the right
+	 */
+	private boolean crosses(double x, double y)
+	{
+		// Count the edges crossing the ray from the point to the right. An edge spanning y (half-open, so that a vertex is counted
+		// once) crosses it if the point is to the left of the edge, i.e. x < x0 + (y - y0) * dx / dy, where dy > 0
+		boolean inside = false;
+		if (_slabStarts == null)
+		{
+			for (int i = 0; i < _edgeCount; i++)
+			{
+				if (y >= _y0[i] && y < _y1[i] && (x - _x0[i]) * _dy[i] < (y - _y0[i]) * _dx[i])
+				{
+					inside = !inside;
+				}
+			}
+		}
+		else
+		{
+			int slab = slabOf(y);
+			int end = _slabStarts[slab + 1];
+			for (int j = _slabStarts[slab]; j < end; j++)
+			{
+				int i = _slabEdges[j];
+				if (y >= _y0[i] && y < _y1[i] && (x - _x0[i]) * _dy[i] < (y - _y0[i]) * _dx[i])
+				{
+					inside = !inside;
+				}
+			}
+		}
+		return inside;
+	}
+
+	/**
+	 * Check if the the given point is inside of the polygon.<br>
+	 *
+	 * @param point
+	 *            The point to check
+	 * @return <code>True</code> if the point is inside the polygon, otherwise return <code>False</code>
+	 */
+	public boolean contains(Point point)
+	{
+		return contains(point.x, point.y);
+	}
+
+	/**
+	 * Get the number of edges that are not horizontal
+	 *
+	 * @return The number of edges
+	 */
+	public int getEdgeCount()
+	{
+		return _edgeCount;
+	}
+
+	/**
+	 * Get the smallest x of the polygon's bounding box
+	 *
+	 * @return The minimum x
+	 */
+	public double getXMin()
+	{
+		return _xMin;
+	}
+
+	/**
+	 * Get the largest x of the polygon's bounding box
+	 *
+	 * @return The maximum x
+	 */
+	public double getXMax()
+	{
+		return _xMax;
+	}
+
+	/**
+	 * Get the smallest y of the polygon's bounding box
+	 *
+	 * @return The minimum y
+	 */
+	public double getYMin()
+	{
+		return _yMin;
+	}
+
+	/**
+	 * Get the largest y of the polygon's bounding box
+	 *
+	 * @return The maximum y
+	 */
+	public double getYMax()
+	{
+		return _yMax;
+	}
+
+	/**
+	 * Indicate whereas the polygon has a raster grid
+	 *
+	 * @return <code>True</code> if it has one, otherwise return <code>False</code>
+	 */
+	public boolean isRasterized()
+	{
+		return _cells != null;
+	}
+
+	/**
+	 * Indicate whereas the edges are indexed by y-slab
+	 *
+	 * @return <code>True</code> if indexed, otherwise return <code>False</code>
+	 */
+	public boolean isIndexed()
+	{
+		return _slabStarts != null;
+	}
+}
@@ -362,6 +362,58 @@ language models.""")
       help = """Specifies the weight given to parent language models.
 Default value '%default' means no interpolation is used.""")
 
+  var kd_tree_snapshot =
+    ap.option[String]("kd-tree-snapshot", metavar = "PREFIX",
+      help = """Prefix of files in which to save the structure of each K-d
+tree once it has been built, one file per grid. On later runs the structure
+is loaded from the file instead of making a preliminary pass over the
+corpus. A snapshot is rebuilt if the bucket size, split method or training
+corpora (including their sizes and modification times) have changed.""")
+
+  var kd_build_threads =
+    ap.option[Int]("kd-build-threads", metavar = "INT", default = 0,
+      must = be_>=(0),
+      help = """Number of threads to use when building the K-d tree. The
+tree built is the same regardless of the number of threads. Default value
+'%default' means use all available processors.""")
+
+  var kd_sample_size =
+    ap.option[Int]("kd-sample-size", metavar = "INT", default = 0,
+      must = be_>=(0),
+      help = """If non-zero, choose the splits of the K-d tree from a random
+sample of at most this many training coordinates, rather than holding all
+of them in memory at once. A second pass over the corpus then counts the
+documents in each node, and a third splits any leaves that came out too
+large (see '--kd-sample-tolerance'). Default value '%default' means build
+the tree from all coordinates.""")
+
+  var kd_sample_tolerance =
+    ap.option[Double]("kd-sample-tolerance", metavar = "FRACTION",
+      default = 0.5, must = be_>=(0.0),
+      help = """When building the K-d tree from a sample, split leaves that
+hold more than the bucket size by more than this fraction of it. Default
+%default.""")
+
+  var kd_spill_dir =
+    ap.option[String]("kd-spill-dir", metavar = "DIR",
+      help = """If given, build the K-d tree out of core, keeping the
+training coordinates in spill files in this directory rather than in
+memory. The tree built is the same. See also '--kd-spill-memory'.""")
+
+  var kd_spill_memory =
+    ap.option[Int]("kd-spill-memory", metavar = "INT", default = 4000000,
+      must = be_>(1),
+      help = """When building the K-d tree out of core, the largest number
+of coordinates to hold in memory at once. Default %default.""")
+
+  var kd_collapse_duplicates =
+    ap.flag("kd-collapse-duplicates",
+      help = """When building the K-d tree in memory, store each distinct
+training coordinate once, with a count of the documents at it, rather than
+once per document. The tree built is the same, but uses much less memory
+and time when many documents share coordinates (e.g. geotags resolved to
+a city centroid).""")
+
   //// Combining the kd-tree model with the cell-grid model
   val combined_kd_grid =
     ap.flag("combined-kd-grid", help = """Combine both the KD tree and
@@ -22,9 +22,12 @@ package opennlp.textgrounder
 package geolocate
 
 import scala.collection.JavaConversions._
-import scala.collection.mutable
 
-import ags.utils.KdTree
+import java.io.File
+import java.util.concurrent.ForkJoinPool
+
+import ags.utils.{ExternalKdTreeBuilder, KdTree, KdTreeSnapshot,
+  SampledKdTreeBuilder}
 import KdTree.SplitMethod
 
 import util.debug._
@@ -32,6 +35,7 @@ import util.experiment._
 import util.error._
 import util.print.errprint
 import util.spherical.SphereCoord
+import util.textdb.TextDB
 
 import langmodel.UnigramLangModel
 
@@ -133,16 +137,26 @@ class KdTreeGrid(
     case Some(grid) => grid.kdtree
     case None => new KdTree(2, bucketSize, splitMethod)
   }
-  /** Map from nodes in the K-d tree to cells. */
-  val nodes_to_cell: mutable.Map[KdTree, KdTreeCell] = existingGrid match {
-    case Some(grid) => grid.nodes_to_cell
-    case None => mutable.Map[KdTree, KdTreeCell]()
+  /** Cells for the nodes in the K-d tree, indexed by node id (see
+    * `KdTree.assignIds`). Created when we add the training documents,
+    * unless we share them with an existing grid.
+    */
+  private var own_node_cells: Array[KdTreeCell] = _
+  def node_cells: Array[KdTreeCell] = existingGrid match {
+    case Some(grid) => grid.node_cells
+    case None => own_node_cells
   }
+  /** Map from nodes in the K-d tree to cells. */
+  def nodes_to_cell(node: KdTree) = node_cells(node.getId)
   /** Set of leaf nodes as returned by iter_nonempty_cells. Will be the same
     * as the actual leaf nodes of the tree except when we have one of the
     * higher levels during hierarchical classification.
     */
   var leaf_nodes: Set[KdTree] = _
+  /** For each node id, the id of the node in `leaf_nodes` that covers it
+    * (the deepest of the node itself and its ancestors), or -1.
+    */
+  var leaf_node_for_id: Array[Int] = _
 
   // Fetch the child nodes, but if none, return the same node instead
   def get_node_children(node: KdTree) = {
@@ -158,39 +172,13 @@ class KdTreeGrid(
   }
 
   // Fetch the leaf nodes underneath the given node.
-  def get_leaf_nodes(node: KdTree): Seq[KdTree] = {
-    val left = node.getLeft
-    val right = node.getRight
-    if (left == null && right == null)
-      Seq(node)
-    else {
-      assert(left != null)
-      assert(right != null)
-      get_leaf_nodes(left) ++ get_leaf_nodes(right)
-    }
-  }
+  def get_leaf_nodes(node: KdTree): Seq[KdTree] = node.leaves.toIndexedSeq
 
-  // Fetch the nodes down to the cutoff given by `cutoffBucketSize`
+  // Fetch the nodes down to the cutoff given by `cutoffBucketSize`,
+  // dividing nodes above the cutoff until we divide no more
   def get_nodes_to_cutoff(nodes: Iterable[KdTree], cutoff: Int
-      ): Iterable[KdTree] = {
-    // Do breadth-wise descent of tree, dividing nodes above the cutoff
-    // and repeating till we divide no nodes
-    def get_next_cutoff_level(nodes: Iterable[KdTree]) = {
-      nodes.flatMap { node =>
-        // We do > not >= because the underlying K-d code uses > to
-        // decide when to split a node
-        if (node.size > cutoff)
-          get_node_children(node)
-        else
-          Seq(node)
-      }
-    }
-    val next_level = get_next_cutoff_level(nodes)
-    // This is tail-recursive
-    if (next_level.size == nodes.size)
-      nodes
-    else get_nodes_to_cutoff(next_level, cutoff)
-  }
+      ): Iterable[KdTree] =
+    nodes.toIndexedSeq.flatMap(_.getNodesToCutoff(cutoff).toSeq)
 
   // // Fetch the nodes down to a specified depth, doing breadth-wise descent
   // def get_nodes_to_depth(nodes: Iterable[KdTree], depth: Int
@@ -278,79 +266,217 @@ class KdTreeGrid(
 
   def describe_node(node: KdTree, depth: Int,
       fn: KdTree => String = x => "") {
-    describe_this_node(node, depth, fn)
-    val left = node.getLeft
-    if (left != null)
-      describe_node(left, depth + 1, fn)
-    val right = node.getRight
-    if (right != null)
-      describe_node(right, depth + 1, fn)
+    val base_depth = kdtree.getDepth(node.getId)
+    for (desc <- node.preOrder)
+      describe_this_node(desc,
+        depth + kdtree.getDepth(desc.getId) - base_depth, fn)
   }
 
   def describe_kd_tree() {
+    errprint("K-d tree statistics:\n%s", kdtree.getStats)
     describe_node(kdtree, 0)
   }
 
-  def add_training_documents_to_grid(
-      get_rawdocs: String => Iterator[DocStatus[RawDoc]]) {
-    if (existingGrid != None)
-      return
+  /**
+   * Fingerprint identifying the parameters and training corpora the K-d
+   * tree is built from, for rejecting stale snapshots. Each corpus is
+   * identified by the size and modification time of the schema and data
+   * files read from it, so that changing, adding or removing any of them
+   * invalidates the snapshot.
+   */
+  def kd_tree_fingerprint = {
+    val driv = driver.asInstanceOf[GeolocateDriver]
+    val params = driv.params
+    val filehand = driv.getfh
+    val corpora = params.train_dirs.flatMap { case (dir, _) =>
+      // Same files as read by read_raw_training_document_streams
+      val (schema_file, data_files) =
+        TextDB.find_textdb_files(filehand, dir, suffix_re = "-training")
+      (schema_file +: data_files.toSeq.sorted).map { file =>
+        s"$file:${filehand.file_length(file)}:${filehand.last_modified(file)}"
+      }
+    }
+    val sampling =
+      if (params.kd_sample_size == 0) Seq()
+      else Seq(params.kd_sample_size, params.kd_sample_tolerance)
+    // These determine which documents are read into the tree
+    val selection = Seq(params.combine_corpora, params.num_training_docs,
+      params.max_time_per_stage)
+    KdTreeSnapshot.fingerprint(
+      (Seq(id, bucketSize, splitMethod) ++ sampling ++ selection ++
+        corpora).map(_.toString): _*)
+  }
 
+  /**
+   * Read the coordinates of the training documents, in a preliminary pass
+   * over the corpus.
+   */
+  def training_coords(get_rawdocs: String => Iterator[DocStatus[RawDoc]],
+      pass: String) = {
     for (doc <- docfact.raw_documents_to_documents(
-           get_rawdocs("preliminary pass to generate K-d tree: reading"),
+           get_rawdocs(s"preliminary pass to $pass: reading"),
            skip_no_coord = true,
            note_globally = false,
-           finish_globally = false)) {
-      kdtree.addPoint(Array(doc.coord.lat, doc.coord.long))
+           finish_globally = false))
+      yield Array(doc.coord.lat, doc.coord.long)
+  }
+
+  /**
+   * Build the K-d tree by reading all training coordinates, then balancing.
+   */
+  def build_kd_tree(get_rawdocs: String => Iterator[DocStatus[RawDoc]]) {
+    val params = driver.asInstanceOf[GeolocateDriver].params
+    if (params.kd_sample_size > 0) {
+      build_sampled_kd_tree(get_rawdocs)
+      return
+    }
+    if (params.kd_spill_dir != null) {
+      build_external_kd_tree(get_rawdocs)
+      return
+    }
+
+    for (coord <- training_coords(get_rawdocs, "generate K-d tree")) {
+      if (params.kd_collapse_duplicates)
+        kdtree.addPoint(coord, 1)
+      else
+        kdtree.addPoint(coord)
     }
 
     // we've seen all the coordinates. we need to build up
     // the entire kd-tree structure now, the centroids, and
     // clean out the data.
 
-    val task =
-      driver.show_progress("generating", "K-d tree structure").start()
-
     // build the full kd-tree structure.
-    kdtree.balance
-
-    for (node <- kdtree.getNodes) {
-      val c = new KdTreeCell(this, node)
-      nodes_to_cell(node) = c
-      task.item_processed()
+    val threads = params.kd_build_threads
+    if (threads == 1)
+      kdtree.balance
+    else {
+      val pool =
+        if (threads == 0) new ForkJoinPool
+        else new ForkJoinPool(threads)
+      try {
+        kdtree.balance(pool)
+      } finally {
+        pool.shutdown()
+      }
     }
-    task.finish()
 
     // no longer need to keep all our locations in memory. destroy
     // them. to free up memory.
     kdtree.annihilateData
+  }
+
+  /**
+   * Build the K-d tree out of core, with the training coordinates held in
+   * spill files rather than in memory.
+   */
+  def build_external_kd_tree(
+      get_rawdocs: String => Iterator[DocStatus[RawDoc]]) {
+    val params = driver.asInstanceOf[GeolocateDriver].params
+    val builder = new ExternalKdTreeBuilder(kdtree,
+      new File(params.kd_spill_dir), params.kd_spill_memory)
+    try {
+      for (coord <- training_coords(get_rawdocs, "generate K-d tree"))
+        builder.add(coord)
+      builder.build()
+    } finally {
+      builder.close()
+    }
+  }
+
+  /**
+   * Build the K-d tree from a random sample of the training coordinates,
+   * then count all of them into it in a second pass and split any leaves
+   * that came out too large in a third. Only the sample and the
+   * coordinates in the overfull leaves are held in memory.
+   */
+  def build_sampled_kd_tree(
+      get_rawdocs: String => Iterator[DocStatus[RawDoc]]) {
+    val params = driver.asInstanceOf[GeolocateDriver].params
+    val builder = new SampledKdTreeBuilder(params.kd_sample_size, 0)
+    for (coord <- training_coords(get_rawdocs, "sample K-d tree"))
+      builder.offer(coord)
+    builder.build(kdtree)
+    builder.clearSample()
+
+    // If the sample held every coordinate, the tree is already exact.
+    if (builder.getSeen > builder.getSampleCount) {
+      for (coord <- training_coords(get_rawdocs, "count K-d tree"))
+        kdtree.countPoint(coord)
+      if (builder.beginRefinement(kdtree, params.kd_sample_tolerance) > 0) {
+        for (coord <- training_coords(get_rawdocs, "refine K-d tree"))
+          builder.refinePoint(coord)
+        errprint("Split %s overfull K-d tree leaves",
+          builder.finishRefinement())
+      }
+    }
+
+    kdtree.annihilateData
+  }
+
+  def add_training_documents_to_grid(
+      get_rawdocs: String => Iterator[DocStatus[RawDoc]]) {
+    if (existingGrid != None)
+      return
+
+    if (debug("kd-tree-stats"))
+      kdtree.setInstrumented(true)
+
+    val snapshot_prefix =
+      driver.asInstanceOf[GeolocateDriver].params.kd_tree_snapshot
+    if (snapshot_prefix == null)
+      build_kd_tree(get_rawdocs)
+    else {
+      val snapshot = new File(s"$snapshot_prefix.$id.kdtree")
+      val fingerprint = kd_tree_fingerprint
+      val compiled =
+        if (snapshot.exists) KdTreeSnapshot.load(snapshot, fingerprint)
+        else null
+      if (compiled != null) {
+        errprint("Loaded K-d tree structure from %s", snapshot)
+        kdtree.restore(compiled)
+      } else {
+        build_kd_tree(get_rawdocs)
+        KdTreeSnapshot.save(kdtree.compile, fingerprint, snapshot)
+        errprint("Saved K-d tree structure to %s", snapshot)
+      }
+    }
+
+    val task =
+      driver.show_progress("generating", "K-d tree structure").start()
+
+    own_node_cells = new Array[KdTreeCell](kdtree.assignIds())
+    for (node <- kdtree.preOrder) {
+      own_node_cells(node.getId) = new KdTreeCell(this, node)
+      task.item_processed()
+    }
+    task.finish()
 
     // Now read normally.
     default_add_training_documents_to_grid(get_rawdocs, doc => {
-      val leaf = kdtree.getLeaf(Array(doc.coord.lat, doc.coord.long))
-      var n = leaf
-      while (n != null) {
-        nodes_to_cell(n).add_document(doc)
-        n = n.parent
+      var id = kdtree.getLeaf(doc.coord.lat, doc.coord.long).getId
+      while (id >= 0) {
+        own_node_cells(id).add_document(doc)
+        id = kdtree.getParentId(id)
       }
     })
 
     if (debug("describe-kd-tree"))
       describe_kd_tree()
+    else if (debug("kd-tree-stats"))
+      errprint("K-d tree statistics:\n%s", kdtree.getStats)
   }
 
   def find_best_cell_for_coord(coord: SphereCoord,
       create_non_recorded: Boolean) = {
-    var leaf = kdtree.getLeaf(Array(coord.lat, coord.long))
-    while (!(leaf_nodes contains leaf)) {
-      leaf = leaf.parent
-      assert(leaf != null)
-    }
+    val leaf = kdtree.getLeaf(coord.lat, coord.long)
+    val id = leaf_node_for_id(leaf.getId)
+    assert(id >= 0)
 
     // FIXME: implementation note: the KD tree should tile the entire
     // earth's surface, but there's a possibility of something going awry
     // here if we've never seen an evaluation point before.
-    Some(nodes_to_cell(leaf))
+    Some(node_cells(id))
   }
 
   override def finish_document_factory() {
@@ -367,17 +493,31 @@ class KdTreeGrid(
   def initialize_cells() {
     // here we need to drop nonleaf nodes unless backoff is enabled.
     leaf_nodes =
-      if (useBackoff) kdtree.getNodes.toSet
+      if (useBackoff) kdtree.preOrder.toSet
       else if (existingGridNewLeaves.size > 0)
         existingGridNewLeaves.toSet
-      else if (cutoffBucketSize == 0) kdtree.getLeaves.toSet
+      else if (cutoffBucketSize == 0) kdtree.leaves.toSet
       else get_nodes_to_cutoff(Seq(kdtree), cutoffBucketSize).toSet
 
     total_num_cells = leaf_nodes.size
 
+    val num_nodes = kdtree.getNodeCount
+    val is_leaf_node = new Array[Boolean](num_nodes)
+    for (node <- leaf_nodes)
+      is_leaf_node(node.getId) = true
+    // Parents come before their children in id order
+    leaf_node_for_id = new Array[Int](num_nodes)
+    for (id <- 0 until num_nodes) {
+      val parent_id = kdtree.getParentId(id)
+      leaf_node_for_id(id) =
+        if (is_leaf_node(id)) id
+        else if (parent_id >= 0) leaf_node_for_id(parent_id)
+        else -1
+    }
+
     if (existingGrid == None) {
       // need to finish generating all the language models
-      for (c <- nodes_to_cell.valuesIterator) {
+      for (c <- node_cells) {
         c.finish()
       }
 
@@ -392,8 +532,8 @@ class KdTreeGrid(
 
         val iwtopdown = true
         val nodes =
-          if (iwtopdown) kdtree.getNodes.toList
-          else kdtree.getNodes.reverse
+          if (iwtopdown) kdtree.preOrder.iterator
+          else kdtree.postOrder.iterator
 
         driver.show_progress("interpolating", "K-d tree cell").
         foreach(nodes.filter(_.parent != null)) { node =>
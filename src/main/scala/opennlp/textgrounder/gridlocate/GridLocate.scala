@@ -1457,7 +1457,13 @@ cell: Print out info on each cell of the Earth as it's generated.  Also
 
 kd-tree-grid: Document me.
 
-describe-kd-tree: Document me.
+describe-kd-tree: Print statistics on the K-d tree (see kd-tree-stats),
+  followed by the boundaries and size of each node.
+
+kd-tree-stats: Time the phases of building the K-d tree and count the nodes
+  visited by lookups, and print statistics on the tree's shape (depths,
+  leaf occupancy, split imbalance) and estimated memory use once the
+  training documents have been added.
 
 --------------------- os-related ---------------------
 
@@ -77,6 +77,14 @@ and 'longitude', see '--slice-size', '--min-slice-value',
   var region_list = ap.option[String]("region-list", "rl",
     help = """List of regions to use, in order, separated by commas.""")
 
+  var region_raster_cells = ap.option[Int]("region-raster-cells", "rrc",
+    default = 1 << 20,
+    must = be_>=(0),
+    help = """Total number of cells in the raster grids laid over the regions
+in '--region-list' to speed up testing which region a document is in,
+divided equally among the regions. Each cell takes one byte. 0 means no
+grids. Default %default.""")
+
   var slice_size = ap.option[Double]("slice-size", "ss",
     default = 1.0,
     help = """Size of slices for grouping documents. Not applicable to
@@ -231,10 +239,25 @@ object DatedCorpusToDTM extends ExperimentApp("DatedCorpusToDTM") {
     }.toMap
   lazy val indexed_region_list =
     params.region_list.split(",").toSeq.zipWithIndex
-  lazy val regions = indexed_region_list.map {
-      case (region, id) => (id, region, region_to_polygon(region))
-    }
+  // Regions are tested for every document, so lay a raster grid over each
+  // to answer most tests with a lookup, sharing '--region-raster-cells'
+  // among them
+  lazy val regions = {
+    val raster_cells =
+      params.region_raster_cells / (indexed_region_list.size max 1)
+    indexed_region_list.map {
+      case (region, id) =>
+        (id, region,
+          new PreparedPolygon(region_to_polygon(region), true, raster_cells))
+    }.toIndexedSeq
+  }
   lazy val id_to_region = indexed_region_list.map { case (x,y) => (y,x) }.toMap
+  // Index over the bounding boxes of the region polygons, by position
+  // in `regions`
+  lazy val region_index = {
+    import collection.JavaConversions._
+    new PolygonIndex(regions.map { case (_, _, polygon) => polygon })
+  }
 
   // Map from cell ID's to slice indices (e.g. years) to sequences of documents.
   val slice_counts = bufmapmap[String, Int, Document]()
@@ -258,21 +281,25 @@ object DatedCorpusToDTM extends ExperimentApp("DatedCorpusToDTM") {
     (date.toDouble / params.slice_size).toInt
   }
 
+  // Distance in degrees within which a point on a region's border counts
+  // as in the region
+  val region_tolerance = 0.00001
+
   // Convert coordinate to list of regions. We can have multiple regions
   // to allow e.g. for a circular specification of regions, with the same
   // region appearing at the beginning and the end.
   def coord_to_region_ids(coord: String) = {
     val Array(lat, long) = coord.split(",").map(_.toFloat)
-    for ((id, name, polygon) <- regions;
-        // Check the point, but also check slightly jittered points in
-        // each of four directions in case we're exactly on a line (in
-        // which case we might get a false value for the regions on both
-        // sides of the line).
-        if polygon.contains(new Point(long, lat)) ||
-           polygon.contains(new Point(long + 0.00001f, lat)) ||
-           polygon.contains(new Point(long - 0.00001f, lat)) ||
-           polygon.contains(new Point(long, lat + 0.00001f)) ||
-           polygon.contains(new Point(long, lat - 0.00001f)))
+    // Only regions whose bounding boxes come within the tolerance of the
+    // point can match
+    val candidates = region_index.candidates(long - region_tolerance,
+      lat - region_tolerance, long + region_tolerance, lat + region_tolerance)
+    for (index <- candidates.toSeq;
+        (id, name, polygon) = regions(index);
+        // Count points on or very near a border as in the regions on both
+        // sides, since a point exactly on a line might otherwise be found
+        // in neither.
+        if polygon.locate(long, lat, region_tolerance) != Location.OUTSIDE)
       yield (id, name)
   }
 
@@ -98,6 +98,18 @@ package hadoop {
       for (file <- status)
         yield file.getPath.toString
     }
+
+    protected def get_file_status(filename: String) = {
+      val status = get_file_system(filename).getFileStatus(new Path(filename))
+      if (status == null)
+        file_not_found(filename)
+      status
+    }
+
+    def file_length(filename: String) = get_file_status(filename).getLen
+
+    def last_modified(filename: String) =
+      get_file_status(filename).getModificationTime
   }
 
   object HadoopExperimentConfiguration {
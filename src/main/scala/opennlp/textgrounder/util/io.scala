@@ -558,6 +558,15 @@ package io {
      * List the files in the given directory.
      */
     def list_files(dir: String): Iterable[String]
+    /**
+     * Return the length of the given file in bytes.
+     */
+    def file_length(filename: String): Long
+    /**
+     * Return the time the given file was last modified, in milliseconds
+     * since the epoch.
+     */
+    def last_modified(filename: String): Long
 
   }
 
@@ -589,6 +598,14 @@ package io {
       for (file <- new File(dir).listFiles)
         yield file.toString
     }
+    def file_length(filename: String) = {
+      check_exists(filename)
+      new File(filename).length
+    }
+    def last_modified(filename: String) = {
+      check_exists(filename)
+      new File(filename).lastModified
+    }
   }
 
   class StdFileHandler extends FileHandler {
@@ -613,6 +630,8 @@ package io {
     def is_directory(filename: String) = unsupported()
     def make_directories(filename: String) = unsupported()
     def list_files(dir: String) = unsupported()
+    def file_length(filename: String) = unsupported()
+    def last_modified(filename: String) = unsupported()
   }
 }
 
@@ -618,6 +618,23 @@ package textdb {
       tail.startsWith(prefix)
     }
 
+    /**
+     * Locate the files of a textdb database in a directory, without reading
+     * them. These are the files read by `get_textdb_files`.
+     *
+     * @return A tuple `(schema_file, files)` where `schema_file` is the name
+     *   of the schema file and `files` is an iterator over data files.
+     */
+    def find_textdb_files(filehand: FileHandler, dir: String,
+        prefix: String = "", suffix_re: String = "") = {
+      val schema_file =
+        Schema.find_schema_file(filehand, dir, prefix, suffix_re)
+      val files = iter_files(filehand, Iterable(dir)).
+          filter(filter_file_by_prefix(filehand, _, prefix)).
+          filter(filter_file_by_suffix(_, suffix_re))
+      (schema_file, files)
+    }
+
     /**
      * Read a textdb database from a directory and return the schema and an
      * iterator over all data files.  This will recursively process any
@@ -640,11 +657,9 @@ package textdb {
     def get_textdb_files(filehand: FileHandler, dir: String,
         prefix: String = "", suffix_re: String = "",
         with_messages: Boolean = true) = {
-      val schema =
-        Schema.read_schema_from_textdb(filehand, dir, prefix, suffix_re)
-      val files = iter_files(filehand, Iterable(dir)).
-          filter(filter_file_by_prefix(filehand, _, prefix)).
-          filter(filter_file_by_suffix(_, suffix_re))
+      val (schema_file, files) =
+        find_textdb_files(filehand, dir, prefix, suffix_re)
+      val schema = Schema.read_schema_file(filehand, schema_file)
       val files_with_message =
         if (with_messages)
           iter_files_with_message(filehand, files)
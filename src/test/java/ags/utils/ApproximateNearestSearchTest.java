@@ -0,0 +1,72 @@
+package ags.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ApproximateNearestSearchTest {
+    private final double[][] points = KdTreeTest.pointsWithDuplicates(3000, 2, 20);
+    private final double[][] queries = KdTreeTest.randomPoints(30, 2, 21);
+    private final KdTree tree =
+        KdTreeTest.buildTree(points, 2, 8, KdTree.SplitMethod.MEDIAN);
+
+    @Test
+    public void unlimitedSearchIsExact() {
+        ApproximateNearestSearch search =
+            new ApproximateNearestSearch(tree, 10, Integer.MAX_VALUE, 0);
+        for (double[] query : queries) {
+            double[] expected = KdTreeTest.sortedDistances(points, query);
+            assertEquals(10, search.search(query));
+            assertTrue(search.isExact());
+            for (int i = 0; i < 10; i++) {
+                assertEquals(expected[i], search.getDistance(i), 0);
+                assertEquals(search.getDistance(i),
+                    KdTreeTest.squaredDistance(search.getPoint(i), query), 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void epsilonBoundsTheDistances() {
+        double epsilon = 0.5;
+        ApproximateNearestSearch search =
+            new ApproximateNearestSearch(tree, 10, Integer.MAX_VALUE, epsilon);
+        for (double[] query : queries) {
+            double[] expected = KdTreeTest.sortedDistances(points, query);
+            assertEquals(10, search.search(query));
+            for (int i = 0; i < 10; i++) {
+                assertTrue(search.getDistance(i) >= expected[i]);
+                assertTrue(search.getDistance(i) <=
+                           (1 + epsilon) * expected[i] + 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void leafLimitIsRespected() {
+        ApproximateNearestSearch search =
+            new ApproximateNearestSearch(tree, 20, 1, 0);
+        for (double[] query : queries) {
+            int count = search.search(query);
+            assertEquals(1, search.getLeavesVisited());
+            assertTrue(count > 0 && count <= 20);
+            for (int i = 0; i < count; i++) {
+                assertEquals(search.getDistance(i),
+                    KdTreeTest.squaredDistance(search.getPoint(i), query), 1e-9);
+                if (i > 0)
+                    assertTrue(search.getDistance(i - 1) <= search.getDistance(i));
+            }
+        }
+    }
+
+    @Test
+    public void emptyTreeFindsNothing() {
+        KdTree empty = new KdTree(2, 8, KdTree.SplitMethod.MEDIAN);
+        empty.balance();
+        ApproximateNearestSearch search =
+            new ApproximateNearestSearch(empty, 3, Integer.MAX_VALUE, 0);
+        assertEquals(0, search.search(new double[] { 1, 1 }));
+        assertTrue(search.isExact());
+    }
+}
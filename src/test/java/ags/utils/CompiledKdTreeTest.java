@@ -0,0 +1,125 @@
+package ags.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+public class CompiledKdTreeTest {
+    @Test
+    public void compiledTreeMirrorsTheTree() {
+        double[][] points = KdTreeTest.pointsWithDuplicates(2000, 2, 50);
+        for (KdTree.SplitMethod method : KdTreeTest.SPLIT_METHODS) {
+            KdTree tree = KdTreeTest.buildTree(points, 2, 8, method);
+            CompiledKdTree compiled = tree.compile();
+            int nodeCount = tree.assignIds();
+            assertEquals(nodeCount, compiled.getNodeCount());
+            assertEquals(tree.getLeaves().size(), compiled.getLeafCount());
+            for (KdTree node : tree.preOrder()) {
+                int id = node.getId();
+                assertEquals(node.size(), compiled.size(id));
+                assertEquals(node.getLeft() == null, compiled.isLeaf(id));
+                assertEquals(tree.getParentId(id), compiled.getParent(id));
+                for (int i = 0; i < 2; i++) {
+                    assertEquals(node.minBoundary[i], compiled.getMinBoundary(id, i), 0);
+                    assertEquals(node.maxBoundary[i], compiled.getMaxBoundary(id, i), 0);
+                }
+                if (!compiled.isLeaf(id)) {
+                    assertEquals(node.getSplitDimension(), compiled.getSplitDimension(id));
+                    assertEquals(node.getSplitValue(), compiled.getSplitValue(id), 0);
+                    assertEquals(node.getLeft().getId(), compiled.getLeft(id));
+                    assertEquals(node.getRight().getId(), compiled.getRight(id));
+                }
+            }
+            for (double[] point : points)
+                assertEquals(tree.getLeaf(point).getId(), compiled.getLeaf(point));
+        }
+    }
+
+    @Test
+    public void restoreRebuildsTheStructure() {
+        double[][] points = KdTreeTest.pointsWithDuplicates(2000, 3, 51);
+        for (KdTree.SplitMethod method : KdTreeTest.SPLIT_METHODS) {
+            KdTree tree = KdTreeTest.buildTree(points, 3, 8, method);
+            KdTree restored = new KdTree(3, 8, method);
+            restored.restore(tree.compile());
+            KdTreeTest.assertSameStructure(tree, restored);
+        }
+    }
+
+    @Test
+    public void emptyTreeCompiles() {
+        KdTree tree = new KdTree(2, 8, KdTree.SplitMethod.MEDIAN);
+        tree.balance();
+        CompiledKdTree compiled = tree.compile();
+        assertEquals(1, compiled.getNodeCount());
+        assertTrue(compiled.isLeaf(0));
+        assertEquals(0, compiled.getLeaf(new double[] { 1, 2 }));
+    }
+
+    @Test
+    public void batchLeafIdsMatchSingleLookups() {
+        double[][] points = KdTreeTest.pointsWithDuplicates(3000, 2, 52);
+        // Besides random points, query exactly on each split and outside
+        // the root's boundary
+        double[][] queries = KdTreeTest.randomPoints(2000, 2, 53);
+        List<double[]> all = new ArrayList<double[]>(Arrays.asList(queries));
+        all.addAll(Arrays.asList(points));
+        for (KdTree.SplitMethod method : KdTreeTest.SPLIT_METHODS) {
+            KdTree tree = KdTreeTest.buildTree(points, 2, 8, method);
+            tree.assignIds();
+            CompiledKdTree compiled = tree.compile();
+            List<double[]> batch = new ArrayList<double[]>(all);
+            for (KdTree node : tree.preOrder()) {
+                if (node.getLeft() == null)
+                    continue;
+                double[] onSplit = { node.minBoundary[0], node.minBoundary[1] };
+                onSplit[node.getSplitDimension()] = node.getSplitValue();
+                batch.add(onSplit);
+            }
+            batch.add(new double[] { -1e9, 1e9 });
+            batch.add(new double[] { 1e9, -1e9 });
+
+            int n = batch.size();
+            double[] xs = new double[n];
+            double[] ys = new double[n];
+            int[] expected = new int[n];
+            for (int i = 0; i < n; i++) {
+                xs[i] = batch.get(i)[0];
+                ys[i] = batch.get(i)[1];
+                expected[i] = tree.getLeaf(batch.get(i)).getId();
+                assertEquals(expected[i], tree.getLeaf(xs[i], ys[i]).getId());
+                assertEquals(expected[i], compiled.getLeaf(batch.get(i)));
+                assertEquals(expected[i], compiled.getLeaf(xs[i], ys[i]));
+            }
+
+            int[] leafIds = new int[n];
+            compiled.findLeaves(xs, ys, leafIds);
+            assertArrayEquals(expected, leafIds);
+
+            // A range leaves the rest of the output alone
+            Arrays.fill(leafIds, -7);
+            compiled.findLeaves(xs, ys, leafIds, 100, n - 100);
+            for (int i = 0; i < n; i++)
+                assertEquals(i < 100 || i >= n - 100 ? -7 : expected[i],
+                             leafIds[i]);
+
+            ForkJoinPool pool = new ForkJoinPool(4);
+            try {
+                for (int chunkSize : new int[] { 1, 37, n }) {
+                    leafIds = new int[n];
+                    compiled.findLeaves(xs, ys, leafIds, pool, chunkSize);
+                    assertArrayEquals(expected, leafIds);
+                }
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+}
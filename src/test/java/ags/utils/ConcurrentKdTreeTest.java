@@ -0,0 +1,204 @@
+package ags.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class ConcurrentKdTreeTest {
+    private static KdTree balancedTree(double[][] points, int bucketSize) {
+        KdTree tree = new KdTree(2, bucketSize, KdTree.SplitMethod.MEDIAN);
+        for (double[] point : points)
+            tree.addPoint(point);
+        tree.balance();
+        return tree;
+    }
+
+    private static List<double[]> collect(ConcurrentKdTree.Node node) {
+        List<double[]> points = new ArrayList<double[]>();
+        collect(node, points);
+        return points;
+    }
+
+    private static void collect(ConcurrentKdTree.Node node,
+            List<double[]> points) {
+        if (node.isLeaf()) {
+            for (int i = 0; i < node.size(); i++)
+                points.add(node.getPoint(i));
+        } else {
+            collect(node.getLeft(), points);
+            collect(node.getRight(), points);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void duplicatesGoIntoOneLeafWithoutResplitting() {
+        double[][] initial = new double[100][];
+        for (int i = 0; i < initial.length; i++)
+            initial[i] = new double[] { i % 10, i / 10 };
+        ConcurrentKdTree tree =
+            new ConcurrentKdTree(balancedTree(initial, 8));
+
+        int duplicates = 50000;
+        double[] location = { 3, 4 };
+        for (int i = 0; i < duplicates; i++)
+            tree.insert(new double[] { 3, 4 });
+
+        ConcurrentKdTree.Snapshot snapshot = tree.snapshot();
+        assertEquals(initial.length + duplicates, snapshot.size());
+        assertEquals(initial.length + duplicates, collect(snapshot.getRoot()).size());
+        ConcurrentKdTree.Node leaf = snapshot.getLeaf(location);
+        assertTrue(leaf.size() >= duplicates);
+        for (int i = 0; i < leaf.size(); i++)
+            assertArrayEquals(location, leaf.getPoint(i), 0);
+    }
+
+    @Test(timeout = 10000)
+    public void nanDuplicatesGoIntoOneLeafWithoutResplitting() {
+        double[][] initial = new double[100][];
+        for (int i = 0; i < initial.length; i++)
+            initial[i] = new double[] { i % 10, i / 10 };
+        ConcurrentKdTree tree =
+            new ConcurrentKdTree(balancedTree(initial, 8));
+
+        int duplicates = 50000;
+        for (int i = 0; i < duplicates; i++)
+            tree.insert(new double[] { Double.NaN, 4 });
+        ConcurrentKdTree.Snapshot snapshot = tree.snapshot();
+        assertEquals(initial.length + duplicates, snapshot.size());
+        assertEquals(initial.length + duplicates,
+                     collect(snapshot.getRoot()).size());
+        assertTrue(snapshot.getLeaf(new double[] { Double.NaN, 4 }).size() >=
+                   duplicates);
+    }
+
+    @Test
+    public void olderVersionsKeepTheirPointsWhenALeafIsShared() {
+        ConcurrentKdTree tree = new ConcurrentKdTree(
+            balancedTree(new double[][] { { 1, 1 }, { 1, 1 } }, 2));
+        for (int i = 0; i < 5; i++)
+            tree.insert(new double[] { 1, 1 });
+        ConcurrentKdTree.Snapshot before = tree.snapshot();
+        ConcurrentKdTree.Node beforeLeaf = before.getLeaf(new double[] { 1, 1 });
+        double[][] beforePoints = new double[beforeLeaf.size()][];
+        for (int i = 0; i < beforePoints.length; i++)
+            beforePoints[i] = beforeLeaf.getPoint(i);
+
+        for (int i = 0; i < 20; i++)
+            tree.insert(new double[] { 1, 1 });
+        assertEquals(7, before.size());
+        assertEquals(7, beforeLeaf.size());
+        for (int i = 0; i < beforePoints.length; i++)
+            assertSame(beforePoints[i], beforeLeaf.getPoint(i));
+        assertEquals(27, tree.snapshot().size());
+    }
+
+    @Test
+    public void aDistinctPointSplitsASingularLeaf() {
+        ConcurrentKdTree tree = new ConcurrentKdTree(
+            balancedTree(new double[][] { { 1, 1 } }, 2));
+        for (int i = 0; i < 10; i++)
+            tree.insert(new double[] { 1, 1 });
+        assertTrue(tree.snapshot().getRoot().isLeaf());
+
+        tree.insert(new double[] { 5, 5 });
+        ConcurrentKdTree.Node root = tree.snapshot().getRoot();
+        assertFalse(root.isLeaf());
+        assertEquals(12, root.size());
+        assertEquals(12, collect(root).size());
+        assertEquals(1, tree.snapshot().getLeaf(new double[] { 5, 5 }).size());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void weightedTreesAreRejected() {
+        KdTree tree = new KdTree(2, 2, KdTree.SplitMethod.MEDIAN);
+        tree.addPoint(new double[] { 1, 1 }, 3);
+        tree.addPoint(new double[] { 2, 2 }, 1);
+        tree.addPoint(new double[] { 3, 3 }, 2);
+        tree.balance();
+        new ConcurrentKdTree(tree);
+    }
+
+    /**
+     * Check that a version of the tree is consistent: every point is in
+     * the leaf it routes to, and every node's size is that of its subtree.
+     */
+    private static void checkSnapshot(ConcurrentKdTree.Snapshot snapshot) {
+        List<double[]> points = collect(snapshot.getRoot());
+        assertEquals(snapshot.size(), points.size());
+        for (double[] point : points) {
+            ConcurrentKdTree.Node leaf = snapshot.getLeaf(point);
+            boolean found = false;
+            for (int i = 0; i < leaf.size() && !found; i++)
+                found = leaf.getPoint(i) == point;
+            assertTrue(found);
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void readersSeeConsistentVersionsDuringInserts()
+            throws InterruptedException {
+        double[][] initial = KdTreeTest.randomPoints(200, 2, 70);
+        final double[][] inserted = KdTreeTest.pointsWithDuplicates(3000, 2, 71);
+        final ConcurrentKdTree tree =
+            new ConcurrentKdTree(balancedTree(initial, 8));
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> failure =
+            new AtomicReference<Throwable>();
+
+        Thread[] readers = new Thread[4];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread() {
+                public void run() {
+                    try {
+                        long lastVersion = -1;
+                        int lastSize = 0;
+                        boolean last = false;
+                        while (!last) {
+                            last = done.get();
+                            ConcurrentKdTree.Snapshot snapshot = tree.snapshot();
+                            assertTrue(snapshot.getVersion() >= lastVersion);
+                            assertTrue(snapshot.size() >= lastSize);
+                            lastVersion = snapshot.getVersion();
+                            lastSize = snapshot.size();
+                            checkSnapshot(snapshot);
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            };
+            readers[r].start();
+        }
+
+        // Single inserts, then batches
+        int half = inserted.length / 2;
+        for (int i = 0; i < half; i++)
+            tree.insert(inserted[i]);
+        for (int i = half; i < inserted.length; i += 100) {
+            int count = Math.min(100, inserted.length - i);
+            double[][] batch = new double[count][];
+            System.arraycopy(inserted, i, batch, 0, count);
+            tree.insertAll(batch, count);
+        }
+        done.set(true);
+        for (Thread reader : readers)
+            reader.join();
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+
+        ConcurrentKdTree.Snapshot snapshot = tree.snapshot();
+        assertEquals(initial.length + inserted.length, snapshot.size());
+        assertEquals(half + (inserted.length - half + 99) / 100,
+                     snapshot.getVersion());
+        checkSnapshot(snapshot);
+    }
+}
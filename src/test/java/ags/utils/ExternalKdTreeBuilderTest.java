@@ -0,0 +1,71 @@
+package ags.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ExternalKdTreeBuilderTest {
+    @Rule
+    public TemporaryFolder spillDir = new TemporaryFolder();
+
+    private KdTree buildExternal(double[][] points, int dimensions,
+            KdTree.SplitMethod method, int memoryPoints) throws IOException {
+        KdTree tree = new KdTree(dimensions, 8, method);
+        ExternalKdTreeBuilder builder = new ExternalKdTreeBuilder(tree,
+            spillDir.getRoot(), memoryPoints);
+        try {
+            for (double[] point : points)
+                builder.add(point);
+            builder.build();
+        } finally {
+            builder.close();
+        }
+        return tree;
+    }
+
+    @Test
+    public void externalBuildMatchesBalance() throws IOException {
+        double[][] points = KdTreeTest.pointsWithDuplicates(5000, 2, 40);
+        for (KdTree.SplitMethod method : KdTreeTest.SPLIT_METHODS) {
+            for (int memoryPoints : new int[] { 2, 100, 10000 }) {
+                KdTree external = buildExternal(points, 2, method, memoryPoints);
+                KdTreeTest.assertSameStructure(
+                    KdTreeTest.buildTree(points, 2, 8, method), external);
+            }
+        }
+    }
+
+    @Test
+    public void externalBuildMatchesBalanceInThreeDimensions()
+            throws IOException {
+        double[][] points = KdTreeTest.pointsWithDuplicates(3000, 3, 41);
+        KdTree external = buildExternal(points, 3, KdTree.SplitMethod.MEDIAN, 50);
+        KdTreeTest.assertSameStructure(
+            KdTreeTest.buildTree(points, 3, 8, KdTree.SplitMethod.MEDIAN),
+            external);
+    }
+
+    @Test(timeout = 20000)
+    public void externalBuildMatchesBalanceWithNaNs() throws IOException {
+        double[][] points = KdTreeTest.pointsWithNaNs(3000, 2, 43);
+        for (KdTree.SplitMethod method : KdTreeTest.SPLIT_METHODS) {
+            KdTree external = buildExternal(points, 2, method, 50);
+            KdTreeTest.assertSameStructure(
+                KdTreeTest.buildTree(points, 2, 8, method), external);
+        }
+        assertEquals(0, spillDir.getRoot().listFiles().length);
+    }
+
+    @Test
+    public void spillFilesAreDeleted() throws IOException {
+        buildExternal(KdTreeTest.randomPoints(2000, 2, 42), 2,
+                      KdTree.SplitMethod.MEDIAN, 100);
+        File[] left = spillDir.getRoot().listFiles();
+        assertEquals(0, left.length);
+    }
+}
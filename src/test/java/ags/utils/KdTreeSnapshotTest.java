@@ -0,0 +1,117 @@
+package ags.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class KdTreeSnapshotTest {
+    @Rule
+    public TemporaryFolder dir = new TemporaryFolder();
+
+    private final double[][] points = KdTreeTest.pointsWithDuplicates(3000, 2, 60);
+    private final KdTree tree =
+        KdTreeTest.buildTree(points, 2, 8, KdTree.SplitMethod.MEDIAN);
+    private final long fingerprint =
+        KdTreeSnapshot.fingerprint("corpus", "8", "MEDIAN");
+
+    private File save() throws IOException {
+        File file = new File(dir.getRoot(), "tree.kdtree");
+        KdTreeSnapshot.save(tree.compile(), fingerprint, file);
+        return file;
+    }
+
+    private static void writeInt(File file, long offset, int value)
+            throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(offset);
+            raf.writeInt(value);
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void roundTripRestoresTheTree() throws IOException {
+        File file = save();
+        CompiledKdTree loaded = KdTreeSnapshot.load(file, fingerprint);
+        KdTree restored = new KdTree(2, 8, KdTree.SplitMethod.MEDIAN);
+        restored.restore(loaded);
+        KdTreeTest.assertSameStructure(tree, restored);
+        for (double[] point : points)
+            assertEquals(tree.compile().getLeaf(point), loaded.getLeaf(point));
+    }
+
+    @Test
+    public void savingOverAnExistingSnapshotReplacesIt() throws IOException {
+        File file = save();
+        KdTree other = KdTreeTest.buildTree(KdTreeTest.randomPoints(100, 2, 61),
+                                            2, 8, KdTree.SplitMethod.MEDIAN);
+        KdTreeSnapshot.save(other.compile(), fingerprint, file);
+        assertEquals(other.compile().getNodeCount(),
+                     KdTreeSnapshot.load(file, fingerprint).getNodeCount());
+        assertEquals(1, dir.getRoot().listFiles().length);
+    }
+
+    @Test
+    public void differentFingerprintIsRejected() throws IOException {
+        File file = save();
+        long other = KdTreeSnapshot.fingerprint("corpus", "16", "MEDIAN");
+        assertTrue(other != fingerprint);
+        assertNull(KdTreeSnapshot.load(file, other));
+    }
+
+    @Test
+    public void differentVersionIsRejected() throws IOException {
+        File file = save();
+        // The version follows the 4-byte magic number
+        writeInt(file, 4, 2);
+        assertNull(KdTreeSnapshot.load(file, fingerprint));
+    }
+
+    @Test
+    public void fingerprintSeparatesParts() {
+        assertTrue(KdTreeSnapshot.fingerprint("ab", "c") !=
+                   KdTreeSnapshot.fingerprint("a", "bc"));
+        assertEquals(KdTreeSnapshot.fingerprint("a", "bc"),
+                     KdTreeSnapshot.fingerprint("a", "bc"));
+    }
+
+    @Test
+    public void otherFilesAreNotSnapshots() throws IOException {
+        File file = save();
+        writeInt(file, 0, 0x12345678);
+        try {
+            KdTreeSnapshot.load(file, fingerprint);
+            fail("Loaded a file with the wrong magic number");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void truncatedSnapshotIsRejected() throws IOException {
+        File file = save();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 8);
+        } finally {
+            raf.close();
+        }
+        try {
+            KdTreeSnapshot.load(file, fingerprint);
+            fail("Loaded a truncated snapshot");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
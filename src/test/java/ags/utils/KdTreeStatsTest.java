@@ -0,0 +1,124 @@
+package ags.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class KdTreeStatsTest {
+    @Test
+    public void shapeStatisticsMatchTheTree() {
+        double[][] points = KdTreeTest.pointsWithDuplicates(3000, 2, 90);
+        KdTree tree = KdTreeTest.buildTree(points, 2, 8,
+                                           KdTree.SplitMethod.MEDIAN);
+        KdTreeStats stats = tree.getStats();
+
+        int nodes = 0, leaves = 0, empty = 0, overfull = 0, maxDepth = 0;
+        int minOccupancy = Integer.MAX_VALUE, maxOccupancy = 0;
+        int[] leavesAtDepth = new int[64];
+        for (KdTree node : tree.preOrder()) {
+            nodes++;
+            int depth = 0;
+            for (KdTree p = node.parent; p != null; p = p.parent)
+                depth++;
+            maxDepth = Math.max(maxDepth, depth);
+            if (node.getLeft() == null) {
+                leaves++;
+                leavesAtDepth[depth]++;
+                if (node.size() == 0)
+                    empty++;
+                if (node.size() > 8)
+                    overfull++;
+                minOccupancy = Math.min(minOccupancy, node.size());
+                maxOccupancy = Math.max(maxOccupancy, node.size());
+            }
+        }
+        assertEquals(nodes, stats.getNodeCount());
+        assertEquals(leaves, stats.getLeafCount());
+        assertEquals(empty, stats.getEmptyLeafCount());
+        assertEquals(overfull, stats.getOverfullLeafCount());
+        assertEquals(maxDepth, stats.getMaxDepth());
+        assertEquals(minOccupancy, stats.getMinOccupancy());
+        assertEquals(maxOccupancy, stats.getMaxOccupancy());
+        assertEquals((double) points.length / leaves,
+                     stats.getMeanOccupancy(), 1e-9);
+        int binned = 0;
+        for (int bin = 0; bin < KdTreeStats.OCCUPANCY_BINS; bin++)
+            binned += stats.getOccupancy(bin);
+        assertEquals(leaves, binned);
+        for (int depth = 0; depth <= maxDepth; depth++) {
+            assertEquals(leavesAtDepth[depth], stats.getLeavesAtDepth(depth));
+            double imbalance = stats.getImbalanceAtDepth(depth);
+            assertTrue(Double.isNaN(imbalance) ||
+                       (imbalance >= 0.5 && imbalance <= 1));
+        }
+    }
+
+    @Test
+    public void instrumentedRootCountsQueries() {
+        KdTree tree = new KdTree(2, 8, KdTree.SplitMethod.MEDIAN);
+        tree.setInstrumented(true);
+        for (double[] point : KdTreeTest.randomPoints(1000, 2, 91))
+            tree.addPoint(point);
+        tree.balance();
+        long visited = 0;
+        for (int i = 0; i < 5; i++) {
+            // The leaf and each of its ancestors
+            for (KdTree p = tree.getLeaf(new double[] { i, i }); p != null;
+                    p = p.parent)
+                visited++;
+        }
+        tree.nearest(new double[] { 0, 0 }, 3, new double[3][], new double[3]);
+        KdTreeStats stats = tree.getStats();
+        assertEquals(5, stats.getLookups());
+        assertEquals(visited, stats.getLookupNodes());
+        assertEquals(1, stats.getSearches());
+        assertTrue(stats.getSearchNodes() > 0);
+        assertTrue(stats.getBalanceNanos() > 0);
+    }
+
+    @Test
+    public void deepTreesDoNotExhaustTheStack() throws InterruptedException {
+        // Halfway splits peel off the outermost point each time, giving a
+        // path about as long as the number of points
+        double[][] points = new double[4000][];
+        for (int i = 0; i < points.length; i++) {
+            double x = Math.scalb(1.0, i / 2 - 1000);
+            points[i] = new double[] { i % 2 == 0 ? x : -x, 0 };
+        }
+        final KdTree tree = KdTreeTest.buildTree(points, 2, 1,
+                                                 KdTree.SplitMethod.HALFWAY);
+        tree.assignIds();
+        int maxDepth = 0;
+        for (int id = 0; id < tree.getNodeCount(); id++)
+            maxDepth = Math.max(maxDepth, tree.getDepth(id));
+        assertTrue(maxDepth > 1000);
+
+        // On a small stack, a recursive walk would overflow
+        final KdTreeStats[] stats = new KdTreeStats[1];
+        final Throwable[] failure = new Throwable[1];
+        Thread thread = new Thread(null, new Runnable() {
+            public void run() {
+                try {
+                    stats[0] = tree.getStats();
+                } catch (Throwable t) {
+                    failure[0] = t;
+                }
+            }
+        }, "stats", 64 * 1024);
+        thread.start();
+        thread.join();
+        if (failure[0] != null)
+            throw new AssertionError(failure[0]);
+        assertEquals(tree.getNodeCount(), stats[0].getNodeCount());
+        assertEquals(maxDepth, stats[0].getMaxDepth());
+
+        // Depths are counted from the node the statistics are for
+        KdTree subtree = tree.getLeft();
+        int subtreeDepth = 0;
+        for (KdTree node : subtree.preOrder())
+            subtreeDepth = Math.max(subtreeDepth,
+                                    tree.getDepth(node.getId()) - 1);
+        assertEquals(subtreeDepth, subtree.getStats().getMaxDepth());
+    }
+}
@@ -0,0 +1,778 @@
+package ags.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+public class KdTreeTest {
+    static double[][] randomPoints(int count, int dimensions, long seed) {
+        Random random = new Random(seed);
+        double[][] points = new double[count][dimensions];
+        for (double[] point : points) {
+            for (int i = 0; i < dimensions; i++)
+                point[i] = random.nextDouble() * 100 - 50;
+        }
+        return points;
+    }
+
+    /**
+     * Random points with some exact duplicates, as at the common locations
+     * of a geotagged corpus.
+     */
+    static double[][] pointsWithDuplicates(int count, int dimensions,
+            long seed) {
+        double[][] points = randomPoints(count, dimensions, seed);
+        Random random = new Random(seed + 1);
+        for (int i = 0; i < count / 4; i++)
+            points[random.nextInt(count)] = points[random.nextInt(8)].clone();
+        return points;
+    }
+
+    /**
+     * Points with duplicates, some with a NaN coordinate.
+     */
+    static double[][] pointsWithNaNs(int count, int dimensions, long seed) {
+        double[][] points = pointsWithDuplicates(count, dimensions, seed);
+        Random random = new Random(seed + 2);
+        for (int i = 0; i < count / 20; i++)
+            points[random.nextInt(count)][random.nextInt(dimensions)] =
+                Double.NaN;
+        return points;
+    }
+
+    static KdTree buildTree(double[][] points, int dimensions,
+            int bucketSize, KdTree.SplitMethod splitMethod) {
+        KdTree tree = new KdTree(dimensions, bucketSize, splitMethod);
+        for (double[] point : points)
+            tree.addPoint(point);
+        tree.balance();
+        return tree;
+    }
+
+    /**
+     * Assert that two trees have the same splits, sizes, boundaries and
+     * limits.
+     */
+    static void assertSameStructure(KdTree expected, KdTree actual) {
+        assertEquals(expected.size(), actual.size());
+        assertArrayEquals(expected.minBoundary, actual.minBoundary, 0);
+        assertArrayEquals(expected.maxBoundary, actual.maxBoundary, 0);
+        assertArrayEquals(expected.minLimit, actual.minLimit, 0);
+        assertArrayEquals(expected.maxLimit, actual.maxLimit, 0);
+        if (expected.getLeft() == null) {
+            assertNull(actual.getLeft());
+            return;
+        }
+        assertTrue(actual.getLeft() != null);
+        assertEquals(expected.getSplitDimension(), actual.getSplitDimension());
+        assertEquals(expected.getSplitValue(), actual.getSplitValue(), 0);
+        assertSameStructure(expected.getLeft(), actual.getLeft());
+        assertSameStructure(expected.getRight(), actual.getRight());
+    }
+
+    static final KdTree.SplitMethod[] SPLIT_METHODS = KdTree.SplitMethod.values();
+
+    @Test
+    public void balancePartitionsPointsAmongLeaves() {
+        double[][] points = pointsWithDuplicates(2000, 2, 4);
+        for (KdTree.SplitMethod method : SPLIT_METHODS) {
+            KdTree tree = buildTree(points, 2, 6, method);
+            assertEquals(points.length, tree.size());
+            int total = 0;
+            for (KdTree leaf : tree.leaves()) {
+                double[][] leafPoints = leaf.getLeafLocations();
+                assertEquals(leaf.size(), leafPoints.length);
+                total += leafPoints.length;
+                boolean singular = leafPoints.length > 0;
+                for (double[] point : leafPoints) {
+                    assertSame(leaf, tree.getLeaf(point));
+                    for (int i = 0; i < 2; i++) {
+                        assertTrue(point[i] >= leaf.minLimit[i] &&
+                                   point[i] <= leaf.maxLimit[i]);
+                        assertTrue(point[i] >= leaf.minBoundary[i] &&
+                                   point[i] <= leaf.maxBoundary[i]);
+                    }
+                    singular &= point[0] == leafPoints[0][0] &&
+                        point[1] == leafPoints[0][1];
+                }
+                // Only a leaf with no width may stay overfull
+                assertTrue(method + " leaf of " + leafPoints.length,
+                           leafPoints.length <= 6 || singular);
+            }
+            assertEquals(points.length, total);
+        }
+    }
+
+    @Test
+    public void twoDimensionalGetLeafMatchesArrayGetLeaf() {
+        double[][] points = randomPoints(500, 2, 1);
+        KdTree tree = buildTree(points, 2, 4, KdTree.SplitMethod.MEDIAN);
+        CompiledKdTree compiled = tree.compile();
+        double[] xs = new double[points.length];
+        double[] ys = new double[points.length];
+        for (int i = 0; i < points.length; i++) {
+            xs[i] = points[i][0];
+            ys[i] = points[i][1];
+        }
+        int[] leafIds = new int[points.length];
+        compiled.findLeaves(xs, ys, leafIds);
+        for (int i = 0; i < points.length; i++) {
+            assertSame(tree.getLeaf(points[i]), tree.getLeaf(xs[i], ys[i]));
+            assertEquals(compiled.getLeaf(points[i]),
+                         compiled.getLeaf(xs[i], ys[i]));
+            assertEquals(compiled.getLeaf(points[i]), leafIds[i]);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void twoDimensionalGetLeafRejectsSphericalTree() {
+        SphericalKdTree tree =
+            new SphericalKdTree(4, KdTree.SplitMethod.MEDIAN);
+        for (int i = 0; i < 50; i++)
+            tree.addCoord(i - 25, i * 3);
+        tree.balance();
+        tree.getLeaf(10.0, 20.0);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void compiledTwoDimensionalGetLeafRejectsOtherDimensions() {
+        buildTree(randomPoints(50, 3, 2), 3, 4, KdTree.SplitMethod.MEDIAN)
+            .compile().getLeaf(1.0, 2.0);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void compiledFindLeavesRejectsOtherDimensions() {
+        buildTree(randomPoints(50, 3, 3), 3, 4, KdTree.SplitMethod.MEDIAN)
+            .compile().findLeaves(new double[1], new double[1], new int[1]);
+    }
+
+    @Test
+    public void searchesOfAnEmptyTreeFindNothing() {
+        KdTree tree = new KdTree(2, 4, KdTree.SplitMethod.MEDIAN);
+        tree.balance();
+        double[] point = { 1, 2 };
+        assertEquals(0, tree.nearest(point, 3, new double[3][], new double[3]));
+        assertEquals(0, tree.withinRadius(point, 10, new double[3][],
+                                          new double[3]));
+        assertEquals(0, tree.nearestLeaves(point, 3, new KdTree[3],
+                                           new double[3]));
+    }
+
+    @Test
+    public void parallelBalanceBuildsTheSameTree() {
+        double[][] points = pointsWithDuplicates(5000, 3, 5);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (KdTree.SplitMethod method : SPLIT_METHODS) {
+                KdTree sequential = buildTree(points, 3, 8, method);
+                KdTree parallel = new KdTree(3, 8, method);
+                for (double[] point : points)
+                    parallel.addPoint(point);
+                parallel.balance(pool, 64);
+                assertSameStructure(sequential, parallel);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    static double squaredDistance(double[] a, double[] b) {
+        double dist = 0;
+        for (int i = 0; i < a.length; i++) {
+            double d = a[i] - b[i];
+            dist += d * d;
+        }
+        return dist;
+    }
+
+    static double[] sortedDistances(double[][] points, double[] query) {
+        double[] dists = new double[points.length];
+        for (int i = 0; i < points.length; i++)
+            dists[i] = squaredDistance(points[i], query);
+        Arrays.sort(dists);
+        return dists;
+    }
+
+    /**
+     * Assert that the tree's k-nearest-neighbour and radius searches agree
+     * with a linear scan of the given points.
+     */
+    static void assertSearchesMatchBruteForce(KdTree tree, double[][] points,
+            double[][] queries) {
+        double[][] resultPoints = new double[points.length][];
+        double[] resultDistances = new double[points.length];
+        for (double[] query : queries) {
+            double[] expected = sortedDistances(points, query);
+            for (int k : new int[] { 1, 5, 37 }) {
+                int count = tree.nearest(query, k, resultPoints,
+                                         resultDistances);
+                assertEquals(Math.min(k, points.length), count);
+                for (int i = 0; i < count; i++) {
+                    assertEquals(expected[i], resultDistances[i], 0);
+                    assertEquals(resultDistances[i],
+                        squaredDistance(resultPoints[i], query), 1e-9);
+                }
+            }
+            for (double radius : new double[] { 0, 4, 100, 400 }) {
+                int within = 0;
+                while (within < expected.length && expected[within] <= radius)
+                    within++;
+                int count = tree.withinRadius(query, radius, resultPoints,
+                                              resultDistances);
+                assertEquals(within, count);
+                for (int i = 0; i < count; i++) {
+                    assertTrue(resultDistances[i] <= radius);
+                    assertEquals(resultDistances[i],
+                        squaredDistance(resultPoints[i], query), 1e-9);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void nearestAndRadiusSearchesMatchBruteForce() {
+        double[][] points = pointsWithDuplicates(3000, 2, 6);
+        // Include the indexed points themselves, and points outside the
+        // tree's bounds
+        double[][] queries = randomPoints(40, 2, 7);
+        for (int i = 0; i < 10; i++)
+            queries[i] = points[i * 100].clone();
+        queries[10] = new double[] { 500, -500 };
+        for (KdTree.SplitMethod method : SPLIT_METHODS) {
+            KdTree tree = buildTree(points, 2, 8, method);
+            assertSearchesMatchBruteForce(tree, points, queries);
+        }
+        // More than two dimensions
+        double[][] points3 = pointsWithDuplicates(1000, 3, 8);
+        assertSearchesMatchBruteForce(
+            buildTree(points3, 3, 4, KdTree.SplitMethod.MEDIAN), points3,
+            randomPoints(20, 3, 9));
+    }
+
+    @Test
+    public void nearestLeavesAreOrderedByBoundaryDistance() {
+        KdTree tree = buildTree(randomPoints(1000, 2, 10), 2, 8,
+                                KdTree.SplitMethod.MEDIAN);
+        double[] query = { 3, -7 };
+        KdTree[] leaves = new KdTree[5];
+        double[] dists = new double[5];
+        assertEquals(5, tree.nearestLeaves(query, 5, leaves, dists));
+        assertSame(tree.getLeaf(query), leaves[0]);
+        assertEquals(0, dists[0], 0);
+
+        List<Double> expected = new ArrayList<Double>();
+        for (KdTree leaf : tree.leaves())
+            expected.add(tree.pointRegionDist(query, leaf.minBoundary,
+                                              leaf.maxBoundary));
+        Collections.sort(expected);
+        for (int i = 0; i < 5; i++)
+            assertEquals(expected.get(i), dists[i], 0);
+    }
+
+    @Test
+    public void insertedPointsAreFoundBySearches() {
+        double[][] points = pointsWithDuplicates(3000, 2, 11);
+        // Later points drift outside the initial bounds, so that inserts
+        // grow the boundaries and unbalance subtrees
+        for (int i = 1500; i < points.length; i++)
+            points[i][0] += i / 10.0;
+        double[][] initial = Arrays.copyOf(points, 1500);
+        double[][] queries = randomPoints(20, 2, 12);
+        for (KdTree.SplitMethod method : SPLIT_METHODS) {
+            KdTree tree = buildTree(initial, 2, 8, method);
+            for (int i = initial.length; i < points.length; i++)
+                tree.insert(points[i]);
+            assertEquals(points.length, tree.size());
+            int total = 0;
+            for (KdTree leaf : tree.leaves()) {
+                for (double[] point : leaf.getLeafLocations())
+                    assertSame(leaf, tree.getLeaf(point));
+                total += leaf.size();
+            }
+            assertEquals(points.length, total);
+            assertSearchesMatchBruteForce(tree, points, queries);
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void nanCoordinatesDoNotSplitForever() {
+        double[][] duplicates = new double[21][];
+        for (int i = 0; i < 20; i++)
+            duplicates[i] = new double[] { Double.NaN, 4 };
+        duplicates[20] = new double[] { 9, 4 };
+        double[][] points = pointsWithNaNs(3000, 3, 63);
+        for (KdTree.SplitMethod method : SPLIT_METHODS) {
+            KdTree tree = buildTree(duplicates, 2, 8, method);
+            assertEquals(duplicates.length, tree.size());
+            tree = buildTree(points, 3, 8, method);
+            int total = 0;
+            for (KdTree leaf : tree.leaves()) {
+                // Every split divides the points
+                if (leaf.parent != null)
+                    assertTrue(leaf.size() < leaf.parent.size());
+                total += leaf.size();
+            }
+            assertEquals(points.length, total);
+        }
+    }
+
+    @Test
+    public void weightedTreeHasTheSameStructureAsUnweighted() {
+        double[][] points = pointsWithDuplicates(2000, 2, 13);
+        for (KdTree.SplitMethod method : SPLIT_METHODS) {
+            KdTree unweighted = buildTree(points, 2, 8, method);
+            KdTree weighted = new KdTree(2, 8, method);
+            for (double[] point : points)
+                weighted.addPoint(point, 1);
+            weighted.balance();
+            assertTrue(weighted.isWeighted());
+            assertSameStructure(unweighted, weighted);
+        }
+    }
+
+    @Test
+    public void insertingIntoABalancedWeightedTreeIsRejected() {
+        double[][] points = pointsWithDuplicates(200, 2, 16);
+        KdTree weighted = new KdTree(2, 8, KdTree.SplitMethod.MEDIAN);
+        for (double[] point : points)
+            weighted.addPoint(point, 2);
+        weighted.balance();
+        KdTree expected = new KdTree(2, 8, KdTree.SplitMethod.MEDIAN);
+        for (double[] point : points)
+            expected.addPoint(point, 2);
+        expected.balance();
+
+        double[][] inserted = randomPoints(400, 2, 17);
+        for (double[] point : inserted) {
+            try {
+                weighted.insert(point);
+                fail("Inserted into a weighted tree");
+            } catch (UnsupportedOperationException e) {
+                // expected
+            }
+        }
+        // Nothing was changed on the way to failing
+        assertSameStructure(expected, weighted);
+    }
+
+    @Test
+    public void rangeQueriesMatchBruteForce() {
+        double[][] points = pointsWithDuplicates(3000, 2, 14);
+        KdTree tree = buildTree(points, 2, 8, KdTree.SplitMethod.MEDIAN);
+        Random random = new Random(15);
+        double[][] results = new double[points.length][];
+        for (int q = 0; q < 30; q++) {
+            double x = random.nextDouble() * 120 - 60;
+            double y = random.nextDouble() * 120 - 60;
+            double[] min = { x, y };
+            double[] max = { x + random.nextDouble() * 30,
+                             y + random.nextDouble() * 30 };
+            int expected = 0;
+            for (double[] point : points) {
+                if (point[0] >= min[0] && point[0] <= max[0] &&
+                        point[1] >= min[1] && point[1] <= max[1])
+                    expected++;
+            }
+            int count = tree.rangeQuery(min, max, results);
+            assertEquals(expected, count);
+            for (int i = 0; i < count; i++) {
+                assertTrue(results[i][0] >= min[0] && results[i][0] <= max[0]);
+                assertTrue(results[i][1] >= min[1] && results[i][1] <= max[1]);
+            }
+
+            List<KdTree> expectedLeaves = new ArrayList<KdTree>();
+            for (KdTree leaf : tree.leaves()) {
+                if (leaf.minBoundary[0] <= max[0] && leaf.maxBoundary[0] >= min[0] &&
+                        leaf.minBoundary[1] <= max[1] && leaf.maxBoundary[1] >= min[1])
+                    expectedLeaves.add(leaf);
+            }
+            assertEquals(expectedLeaves, tree.rangeQueryLeaves(min, max));
+        }
+    }
+
+    private static void recursiveOrders(KdTree node, List<KdTree> pre,
+            List<KdTree> post, List<KdTree> leaves) {
+        pre.add(node);
+        if (node.getLeft() == null) {
+            leaves.add(node);
+        } else {
+            recursiveOrders(node.getLeft(), pre, post, leaves);
+            recursiveOrders(node.getRight(), pre, post, leaves);
+        }
+        post.add(node);
+    }
+
+    private static List<KdTree> toList(Iterable<KdTree> nodes) {
+        List<KdTree> list = new ArrayList<KdTree>();
+        for (KdTree node : nodes)
+            list.add(node);
+        return list;
+    }
+
+    @Test
+    public void iteratorsMatchRecursiveTraversal() {
+        KdTree tree = buildTree(pointsWithDuplicates(2000, 2, 16), 2, 8,
+                                KdTree.SplitMethod.MEDIAN);
+        List<KdTree> pre = new ArrayList<KdTree>();
+        List<KdTree> post = new ArrayList<KdTree>();
+        List<KdTree> leaves = new ArrayList<KdTree>();
+        recursiveOrders(tree, pre, post, leaves);
+        assertEquals(pre, toList(tree.preOrder()));
+        assertEquals(post, toList(tree.postOrder()));
+        assertEquals(leaves, toList(tree.leaves()));
+        // Iterating a subtree stays within it
+        KdTree subtree = tree.getLeft().getRight();
+        pre.clear();
+        post.clear();
+        leaves.clear();
+        recursiveOrders(subtree, pre, post, leaves);
+        assertEquals(pre, toList(subtree.preOrder()));
+        assertEquals(post, toList(subtree.postOrder()));
+        assertEquals(leaves, toList(subtree.leaves()));
+    }
+
+    @Test
+    public void walkSkipsSubtreesAndTerminates() {
+        KdTree tree = buildTree(randomPoints(2000, 2, 17), 2, 8,
+                                KdTree.SplitMethod.MEDIAN);
+        final List<KdTree> visited = new ArrayList<KdTree>();
+        assertTrue(tree.walk(new KdTree.Visitor() {
+            public KdTree.VisitResult visit(KdTree node) {
+                visited.add(node);
+                return node.size() <= 100 ? KdTree.VisitResult.SKIP_SUBTREE :
+                    KdTree.VisitResult.CONTINUE;
+            }
+        }));
+        // Nodes under a skipped node are not visited
+        List<KdTree> expected = new ArrayList<KdTree>();
+        for (KdTree node : tree.preOrder()) {
+            boolean skipped = false;
+            for (KdTree p = node.parent; p != null; p = p.parent)
+                skipped |= p.size() <= 100;
+            if (!skipped)
+                expected.add(node);
+        }
+        assertEquals(expected, visited);
+
+        final int[] count = new int[1];
+        assertFalse(tree.walk(new KdTree.Visitor() {
+            public KdTree.VisitResult visit(KdTree node) {
+                return ++count[0] == 10 ? KdTree.VisitResult.TERMINATE :
+                    KdTree.VisitResult.CONTINUE;
+            }
+        }));
+        assertEquals(10, count[0]);
+    }
+
+    @Test
+    public void idsAreInvalidatedByInserts() {
+        KdTree tree = buildTree(randomPoints(500, 2, 19), 2, 8,
+                                KdTree.SplitMethod.MEDIAN);
+        try {
+            tree.getId();
+            fail("Got an id before assigning ids");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        tree.assignIds();
+        List<KdTree> nodes = tree.getNodes();
+        for (double[] point : randomPoints(200, 2, 20))
+            tree.insert(point);
+
+        for (KdTree node : nodes) {
+            try {
+                node.getId();
+                fail("Got a stale id");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        }
+        try {
+            tree.getDepth(0);
+            fail("Got a stale depth");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        // Numbering again covers the new nodes
+        int count = tree.assignIds();
+        int id = 0;
+        for (KdTree node : tree.preOrder())
+            assertEquals(id++, node.getId());
+        assertEquals(count, id);
+    }
+
+    @Test
+    public void ancestorLookupsWorkInADeepTree() {
+        // Halfway splits peel off the largest point each time, giving a
+        // path about as long as the number of points
+        double[][] points = new double[1000][];
+        for (int i = 0; i < points.length; i++)
+            points[i] = new double[] { Math.scalb(1.0, i), 0 };
+        KdTree tree = buildTree(points, 2, 1, KdTree.SplitMethod.HALFWAY);
+        int count = tree.assignIds();
+        int maxDepth = 0;
+        for (int id = 0; id < count; id++)
+            maxDepth = Math.max(maxDepth, tree.getDepth(id));
+        assertTrue(maxDepth > 900);
+
+        for (int id = 0; id < count; id++) {
+            int ancestor = id;
+            for (int d = tree.getDepth(id); d >= 0; d--) {
+                assertEquals(ancestor, tree.getAncestor(id, d));
+                ancestor = tree.getParentId(ancestor);
+            }
+        }
+        for (int cutoff : new int[] { 0, 1, 2, 10, 333, 999, 1000 }) {
+            int[] table = tree.getCutoffAncestors(cutoff);
+            for (int id = 0; id < count; id++)
+                assertEquals(table[id], tree.getAncestorAtCutoff(id, cutoff));
+        }
+    }
+
+    @Test
+    public void idTablesMatchTheTree() {
+        KdTree tree = buildTree(pointsWithDuplicates(3000, 2, 18), 2, 8,
+                                KdTree.SplitMethod.MEDIAN);
+        int count = tree.assignIds();
+        assertEquals(count, tree.getNodeCount());
+        int id = 0;
+        for (KdTree node : tree.preOrder()) {
+            assertEquals(id, node.getId());
+            assertSame(node, tree.getNode(id));
+            int depth = 0;
+            for (KdTree p = node.parent; p != null; p = p.parent)
+                depth++;
+            assertEquals(depth, tree.getDepth(id));
+            assertEquals(node.parent == null ? -1 : node.parent.getId(),
+                         tree.getParentId(id));
+            assertEquals(id + toList(node.preOrder()).size(),
+                         tree.getSubtreeEnd(id));
+            int ancestor = id;
+            for (int d = depth; d >= 0; d--) {
+                assertEquals(ancestor, tree.getAncestor(id, d));
+                ancestor = tree.getParentId(ancestor);
+            }
+            id++;
+        }
+        assertEquals(count, id);
+
+        for (int cutoff : new int[] { 0, 8, 50, 500, 5000 }) {
+            int[] table = tree.getCutoffAncestors(cutoff);
+            for (int i = 0; i < count; i++)
+                assertEquals(table[i], tree.getAncestorAtCutoff(i, cutoff));
+            // Each node at the cutoff covers exactly its own subtree
+            int covered = 0;
+            for (KdTree node : tree.getNodesToCutoff(cutoff)) {
+                int nodeId = node.getId();
+                for (int i = nodeId; i < tree.getSubtreeEnd(nodeId); i++) {
+                    assertEquals(nodeId, table[i]);
+                    covered++;
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                if (table[i] < 0)
+                    covered++;
+            }
+            assertEquals(count, covered);
+        }
+    }
+
+    // The split selection KdTree used before it went primitive: sort the
+    // boxed coordinates and take the middle, or the widest gap
+
+    private static double boxedMedian(double[] values, int from, int to) {
+        List<Double> list = new ArrayList<Double>();
+        for (int i = from; i < to; i++)
+            list.add(values[i]);
+        Collections.sort(list);
+        if (list.size() % 2 == 1)
+            return list.get(list.size() / 2);
+        return (list.get(list.size() / 2) + list.get(list.size() / 2 - 1)) / 2;
+    }
+
+    private static double boxedMaxMargin(double[] values, int from, int to) {
+        List<Double> list = new ArrayList<Double>();
+        for (int i = from; i < to; i++)
+            list.add(values[i]);
+        Collections.sort(list);
+        double maxMargin = 0.0;
+        double splitValue = Double.NaN;
+        for (int i = 0; i < list.size() - 1; i++) {
+            double delta = list.get(i + 1) - list.get(i);
+            if (delta > maxMargin) {
+                maxMargin = delta;
+                splitValue = list.get(i) + 0.5 * delta;
+            }
+        }
+        return splitValue;
+    }
+
+    /**
+     * Arrays of coordinates to select splits from: random ones with
+     * duplicates, signed zeros and NaNs, and the orderings that defeat
+     * a naive quickselect.
+     */
+    private static List<double[]> splitInputs() {
+        Random random = new Random(60);
+        List<double[]> inputs = new ArrayList<double[]>();
+        for (int n : new int[] { 1, 2, 3, 16, 17, 100, 1001, 20000 }) {
+            double[] values = new double[n];
+            for (int i = 0; i < n; i++) {
+                switch (random.nextInt(8)) {
+                case 0: values[i] = 0.0; break;
+                case 1: values[i] = -0.0; break;
+                case 2: values[i] = random.nextInt(5); break;
+                case 3: values[i] = n > 100 && random.nextInt(50) == 0 ?
+                            Double.NaN : 1.5; break;
+                default: values[i] = random.nextGaussian() * 100;
+                }
+            }
+            inputs.add(values);
+
+            double[] sorted = new double[n];
+            double[] reversed = new double[n];
+            double[] organPipe = new double[n];
+            double[] equal = new double[n];
+            for (int i = 0; i < n; i++) {
+                sorted[i] = i;
+                reversed[i] = n - i;
+                organPipe[i] = Math.min(i, n - i);
+                equal[i] = 7;
+            }
+            inputs.add(sorted);
+            inputs.add(reversed);
+            inputs.add(organPipe);
+            inputs.add(equal);
+        }
+        return inputs;
+    }
+
+    private static void assertSameBits(String message, double expected,
+            double actual) {
+        assertEquals(message, Double.doubleToLongBits(expected),
+                     Double.doubleToLongBits(actual));
+    }
+
+    @Test
+    public void medianMatchesSortBasedMedian() {
+        for (double[] values : splitInputs()) {
+            int n = values.length;
+            // The whole array, and a range within it as nodes use
+            int[][] ranges = { { 0, n }, { n / 3, n - n / 4 } };
+            for (int[] range : ranges) {
+                if (range[0] >= range[1])
+                    continue;
+                double[] work = values.clone();
+                assertSameBits(n + " values", boxedMedian(values, range[0], range[1]),
+                               KdTree.median(work, range[0], range[1]));
+                // Only the range is reordered, and nothing is lost
+                double[] before = Arrays.copyOfRange(values, range[0], range[1]);
+                double[] after = Arrays.copyOfRange(work, range[0], range[1]);
+                Arrays.sort(before);
+                Arrays.sort(after);
+                assertArrayEquals(before, after, 0);
+                for (int i = 0; i < range[0]; i++)
+                    assertSameBits("before range", values[i], work[i]);
+                for (int i = range[1]; i < n; i++)
+                    assertSameBits("after range", values[i], work[i]);
+            }
+        }
+    }
+
+    @Test
+    public void selectPartitionsAroundTheKthValue() {
+        for (double[] values : splitInputs()) {
+            double[] sorted = values.clone();
+            Arrays.sort(sorted);
+            for (int k : new int[] { 0, values.length / 2, values.length - 1 }) {
+                double[] work = values.clone();
+                KdTree.select(work, 0, work.length, k);
+                assertSameBits("k = " + k, sorted[k], work[k]);
+                for (int i = 0; i < k; i++)
+                    assertTrue(Double.compare(work[i], work[k]) <= 0);
+                for (int i = k + 1; i < work.length; i++)
+                    assertTrue(Double.compare(work[i], work[k]) >= 0);
+            }
+        }
+    }
+
+    @Test
+    public void weightedMedianMatchesMedianOfRepeatedValues() {
+        Random random = new Random(61);
+        for (double[] values : splitInputs()) {
+            if (values.length > 1001)
+                continue;
+            int[] weights = new int[values.length];
+            int total = 0;
+            for (int i = 0; i < values.length; i++) {
+                weights[i] = 1 + random.nextInt(4);
+                total += weights[i];
+            }
+            double[] repeated = new double[total];
+            for (int i = 0, j = 0; i < values.length; i++) {
+                for (int w = 0; w < weights[i]; w++)
+                    repeated[j++] = values[i];
+            }
+            assertSameBits(values.length + " values",
+                           boxedMedian(repeated, 0, total),
+                           KdTree.weightedMedian(values.clone(),
+                                                 weights.clone(), 0,
+                                                 values.length, total));
+        }
+    }
+
+    @Test
+    public void maxMarginSplitMatchesSortBasedSplit() {
+        for (double[] values : splitInputs()) {
+            assertSameBits(values.length + " values",
+                           boxedMaxMargin(values, 0, values.length),
+                           KdTree.maxMarginSplit(values.clone(), 0,
+                                                 values.length));
+        }
+    }
+
+    @Test
+    public void splitValuesMatchSortBasedSelection() {
+        // Each stem's split must be what the boxed sort gives over the
+        // points under it
+        double[][] points = pointsWithDuplicates(5000, 3, 62);
+        KdTree.SplitMethod[] methods =
+            { KdTree.SplitMethod.MEDIAN, KdTree.SplitMethod.MAX_MARGIN };
+        for (KdTree.SplitMethod method : methods) {
+            KdTree tree = buildTree(points, 3, 8, method);
+            for (KdTree node : tree.preOrder()) {
+                if (node.getLeft() == null)
+                    continue;
+                int dim = node.getSplitDimension();
+                List<double[]> under = new ArrayList<double[]>();
+                for (KdTree leaf : node.leaves())
+                    under.addAll(Arrays.asList(leaf.getLeafLocations()));
+                double[] values = new double[under.size()];
+                for (int i = 0; i < values.length; i++)
+                    values[i] = under.get(i)[dim];
+                double expected = method == KdTree.SplitMethod.MEDIAN ?
+                    boxedMedian(values, 0, values.length) :
+                    boxedMaxMargin(values, 0, values.length);
+                // As splitAt() does, never split at the upper limit
+                if (expected == node.maxLimit[dim])
+                    expected = node.minLimit[dim];
+                assertSameBits(method + " split", expected,
+                               node.getSplitValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package ags.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PointColumnsTest {
+    /**
+     * A tree with the default metric, but which overrides pointDist() and
+     * so always takes the scalar path.
+     */
+    static class ScalarKdTree extends KdTree {
+        ScalarKdTree(int dimensions, int bucketSize, SplitMethod splitMethod) {
+            super(dimensions, bucketSize, splitMethod);
+        }
+
+        protected double pointDist(double[] p1, double[] p2) {
+            return super.pointDist(p1, p2);
+        }
+    }
+
+    private static double[][] queries(int dimensions, long seed) {
+        double[][] queries = KdTreeTest.randomPoints(40, dimensions, seed);
+        queries[0][0] = Double.NaN;
+        queries[1][dimensions - 1] = Double.NaN;
+        // Too large to batch, so both trees take the scalar path
+        queries[2][0] = 1e200;
+        return queries;
+    }
+
+    @Test
+    public void batchDistancesMatchPointDist() {
+        double[][] points = KdTreeTest.pointsWithNaNs(1000, 3, 80);
+        KdTree tree = new KdTree(3, 8, KdTree.SplitMethod.MEDIAN);
+        PointColumns columns = new PointColumns(points, points.length, 3);
+        for (double[] query : queries(3, 81)) {
+            if (!PointColumns.canBatch(query))
+                continue;
+            int from = 100, to = 900;
+            double[] distances = columns.distances(query, from, to);
+            for (int i = from; i < to; i++) {
+                assertEquals(Double.doubleToLongBits(
+                                 tree.pointDist(query, points[i])),
+                             Double.doubleToLongBits(distances[i - from]));
+            }
+        }
+    }
+
+    @Test
+    public void onlyModerateOrNaNCoordinatesAreBatched() {
+        assertTrue(PointColumns.canBatch(new double[] { 1, -1e100 }));
+        assertTrue(PointColumns.canBatch(new double[] { Double.NaN, 3 }));
+        assertFalse(PointColumns.canBatch(new double[] { 1, 1e200 }));
+        assertFalse(PointColumns.canBatch(
+            new double[] { Double.NEGATIVE_INFINITY, 0 }));
+    }
+
+    @Test
+    public void onlyTheDefaultMetricIsBatched() {
+        assertTrue(PointColumns.usesDefaultMetric(KdTree.class));
+        assertTrue(PointColumns.usesDefaultMetric(SphericalKdTree.class));
+        assertFalse(PointColumns.usesDefaultMetric(ScalarKdTree.class));
+    }
+
+    @Test
+    public void searchesMatchTheScalarPath() {
+        double[][] points = KdTreeTest.pointsWithNaNs(3000, 3, 82);
+        KdTree batched = new KdTree(3, 8, KdTree.SplitMethod.MEDIAN);
+        KdTree scalar = new ScalarKdTree(3, 8, KdTree.SplitMethod.MEDIAN);
+        for (double[] point : points) {
+            batched.addPoint(point);
+            scalar.addPoint(point);
+        }
+        batched.balance();
+        scalar.balance();
+
+        int k = 10;
+        double[][] batchedPoints = new double[points.length][];
+        double[][] scalarPoints = new double[points.length][];
+        double[] batchedDistances = new double[points.length];
+        double[] scalarDistances = new double[points.length];
+        for (double[] query : queries(3, 83)) {
+            int count = batched.nearest(query, k, batchedPoints,
+                                        batchedDistances);
+            assertEquals(scalar.nearest(query, k, scalarPoints,
+                                        scalarDistances), count);
+            for (int i = 0; i < count; i++) {
+                assertSame(scalarPoints[i], batchedPoints[i]);
+                assertEquals(scalarDistances[i], batchedDistances[i], 0);
+            }
+
+            double radius = 400;
+            count = batched.withinRadius(query, radius, batchedPoints,
+                                         batchedDistances);
+            assertEquals(scalar.withinRadius(query, radius, scalarPoints,
+                                             scalarDistances), count);
+            for (int i = 0; i < count; i++) {
+                assertSame(scalarPoints[i], batchedPoints[i]);
+                assertEquals(scalarDistances[i], batchedDistances[i], 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package ags.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class SampledKdTreeBuilderTest {
+    @Test
+    public void fullSampleBuildsTheBalancedTree() {
+        double[][] points = KdTreeTest.pointsWithDuplicates(2000, 2, 30);
+        for (KdTree.SplitMethod method : KdTreeTest.SPLIT_METHODS) {
+            SampledKdTreeBuilder builder =
+                new SampledKdTreeBuilder(points.length, 31);
+            for (double[] point : points)
+                builder.offer(point);
+            KdTree sampled = new KdTree(2, 8, method);
+            builder.build(sampled);
+            KdTreeTest.assertSameStructure(
+                KdTreeTest.buildTree(points, 2, 8, method), sampled);
+        }
+    }
+
+    @Test
+    public void countedTreeHoldsEveryPoint() {
+        double[][] points = KdTreeTest.pointsWithDuplicates(20000, 2, 32);
+        double tolerance = 0.5;
+        for (KdTree.SplitMethod method : KdTreeTest.SPLIT_METHODS) {
+            SampledKdTreeBuilder builder = new SampledKdTreeBuilder(1000, 33);
+            for (double[] point : points)
+                builder.offer(point);
+            assertEquals(points.length, builder.getSeen());
+            KdTree tree = new KdTree(2, 16, method);
+            builder.build(tree);
+            builder.clearSample();
+            for (double[] point : points)
+                tree.countPoint(point);
+            if (builder.beginRefinement(tree, tolerance) > 0) {
+                for (double[] point : points)
+                    builder.refinePoint(point);
+                builder.finishRefinement();
+            }
+
+            assertEquals(points.length, tree.size());
+            int total = 0;
+            for (KdTree leaf : tree.leaves()) {
+                total += leaf.size();
+                // Only a leaf with no width may stay overfull
+                if (leaf.size() > (1 + tolerance) * 16)
+                    assertArrayEquals(method + " overfull leaf",
+                                      leaf.minLimit, leaf.maxLimit, 0);
+            }
+            assertEquals(points.length, total);
+            for (double[] point : points) {
+                KdTree leaf = tree.getLeaf(point);
+                for (int i = 0; i < 2; i++) {
+                    assertTrue(point[i] >= leaf.minLimit[i] &&
+                               point[i] <= leaf.maxLimit[i]);
+                    assertTrue(point[i] >= leaf.minBoundary[i] &&
+                               point[i] <= leaf.maxBoundary[i]);
+                }
+            }
+            // Counting the points again gives the same sizes and limits
+            KdTree recounted = new KdTree(2, 16, method);
+            recounted.restore(tree.compile());
+            recounted.resetSizes();
+            for (double[] point : points)
+                recounted.countPoint(point);
+            KdTreeTest.assertSameStructure(tree, recounted);
+        }
+    }
+
+    @Test
+    public void leavesOfIdenticalPointsAreNotRefined() {
+        double[][] points = KdTreeTest.randomPoints(20000, 2, 34);
+        // Below all the other points, so that a split can isolate it
+        double[] common = { -60, -60 };
+        for (int i = 0; i < points.length; i += 2)
+            points[i] = common.clone();
+        SampledKdTreeBuilder builder = new SampledKdTreeBuilder(500, 35);
+        for (double[] point : points)
+            builder.offer(point);
+        KdTree tree = new KdTree(2, 16, KdTree.SplitMethod.MEDIAN);
+        builder.build(tree);
+        for (double[] point : points)
+            tree.countPoint(point);
+        int expected = 0;
+        int singular = 0;
+        for (KdTree leaf : tree.leaves()) {
+            if (leaf.size() <= 1.5 * 16)
+                continue;
+            if (Arrays.equals(leaf.minLimit, leaf.maxLimit))
+                singular++;
+            else
+                expected++;
+        }
+        assertTrue(singular > 0);
+        assertEquals(expected, builder.beginRefinement(tree, 0.5));
+        for (double[] point : points)
+            builder.refinePoint(point);
+        assertEquals(expected, builder.finishRefinement());
+        assertEquals(points.length, tree.size());
+        KdTree commonLeaf = tree.getLeaf(common);
+        assertTrue(commonLeaf.getLeft() == null);
+        assertTrue(commonLeaf.size() >= points.length / 2);
+    }
+
+    @Test
+    public void identicalPointsNeedNoRefinement() {
+        SampledKdTreeBuilder builder = new SampledKdTreeBuilder(100, 36);
+        for (int i = 0; i < 20000; i++)
+            builder.offer(new double[] { 3, 4 });
+        KdTree tree = new KdTree(2, 16, KdTree.SplitMethod.MEDIAN);
+        builder.build(tree);
+        for (int i = 0; i < 20000; i++)
+            tree.countPoint(new double[] { 3, 4 });
+        assertEquals(0, builder.beginRefinement(tree, 0.5));
+    }
+}
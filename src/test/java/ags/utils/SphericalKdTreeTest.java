@@ -0,0 +1,87 @@
+package ags.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SphericalKdTreeTest {
+    // Great-circle distance in radians, by the haversine formula
+    private static double greatCircle(double lat1, double lng1, double lat2,
+            double lng2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLng = Math.toRadians(lng2 - lng1);
+        double a = Math.pow(Math.sin(dLat / 2), 2) +
+            Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) *
+            Math.pow(Math.sin(dLng / 2), 2);
+        return 2 * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    @Test
+    public void nearestMatchesGreatCircleBruteForce() {
+        Random random = new Random(80);
+        // Bunched near the poles and the antimeridian, where raw
+        // (latitude, longitude) distances go wrong
+        double[][] coords = new double[3000][];
+        for (int i = 0; i < coords.length; i++) {
+            double lat = i % 3 == 0 ? 80 + random.nextDouble() * 10 :
+                random.nextDouble() * 180 - 90;
+            double lng = i % 3 == 1 ? 175 + random.nextDouble() * 10 :
+                random.nextDouble() * 360 - 180;
+            if (lng > 180)
+                lng -= 360;
+            coords[i] = new double[] { lat, lng };
+        }
+        SphericalKdTree tree =
+            new SphericalKdTree(8, KdTree.SplitMethod.MEDIAN);
+        for (double[] coord : coords)
+            tree.addCoord(coord[0], coord[1]);
+        tree.balance();
+
+        double[][] resultPoints = new double[10][];
+        double[] resultDistances = new double[10];
+        double[][] queries = { { 89.9, 0 }, { -89.9, 45 }, { 10, 179.99 },
+                               { 10, -179.99 }, { 0, 0 }, { 45, -90 } };
+        for (double[] query : queries) {
+            double[] expected = new double[coords.length];
+            for (int i = 0; i < coords.length; i++)
+                expected[i] = greatCircle(query[0], query[1], coords[i][0],
+                                          coords[i][1]);
+            Arrays.sort(expected);
+            int count = tree.nearest(
+                SphericalKdTree.toVector(query[0], query[1]), 10,
+                resultPoints, resultDistances);
+            assertEquals(10, count);
+            for (int i = 0; i < count; i++)
+                assertEquals(expected[i],
+                    SphericalKdTree.angularDistance(resultDistances[i]), 1e-9);
+        }
+    }
+
+    @Test
+    public void radiusAndChordConversionsAgree() {
+        for (double angle = 0; angle <= Math.PI; angle += 0.1)
+            assertEquals(angle, SphericalKdTree.angularDistance(
+                SphericalKdTree.squaredChord(angle)), 1e-9);
+    }
+
+    @Test
+    public void getLeafForCoordMatchesGetLeaf() {
+        SphericalKdTree tree =
+            new SphericalKdTree(4, KdTree.SplitMethod.MEDIAN);
+        Random random = new Random(81);
+        for (int i = 0; i < 1000; i++)
+            tree.addCoord(random.nextDouble() * 180 - 90,
+                          random.nextDouble() * 360 - 180);
+        tree.balance();
+        for (int i = 0; i < 200; i++) {
+            double lat = random.nextDouble() * 180 - 90;
+            double lng = random.nextDouble() * 360 - 180;
+            assertSame(tree.getLeaf(SphericalKdTree.toVector(lat, lng)),
+                       tree.getLeafForCoord(lat, lng));
+        }
+    }
+}
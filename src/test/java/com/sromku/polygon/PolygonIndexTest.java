@@ -0,0 +1,76 @@
+package com.sromku.polygon;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PolygonIndexTest
+{
+	/**
+	 * A grid of small overlapping triangles, more than fit in a few nodes of the index
+	 */
+	private static List<PreparedPolygon> triangles(int count, long seed)
+	{
+		Random random = new Random(seed);
+		List<PreparedPolygon> polygons = new ArrayList<PreparedPolygon>();
+		for (int i = 0; i < count; i++)
+		{
+			float x = random.nextFloat() * 100;
+			float y = random.nextFloat() * 100;
+			float size = 1 + random.nextFloat() * 5;
+			polygons.add(new PreparedPolygon(Polygon.Builder().addVertex(new Point(x, y)).addVertex(new Point(x + size, y))
+				.addVertex(new Point(x, y + size)).build()));
+		}
+		return polygons;
+	}
+
+	@Test
+	public void queriesMatchBruteForce()
+	{
+		for (int count : new int[] { 0, 1, 15, 16, 17, 1000 })
+		{
+			List<PreparedPolygon> polygons = triangles(count, count);
+			PolygonIndex index = new PolygonIndex(polygons);
+			assertEquals(count, index.size());
+			Random random = new Random(7);
+			for (int q = 0; q < 500; q++)
+			{
+				double x = random.nextDouble() * 110 - 5;
+				double y = random.nextDouble() * 110 - 5;
+				double size = random.nextDouble() * 3;
+
+				List<Integer> expected = new ArrayList<Integer>();
+				List<Integer> containing = new ArrayList<Integer>();
+				for (int i = 0; i < count; i++)
+				{
+					PreparedPolygon p = polygons.get(i);
+					if (p.getXMin() <= x + size && p.getXMax() >= x && p.getYMin() <= y + size && p.getYMax() >= y)
+					{
+						expected.add(i);
+					}
+					if (p.contains(x, y))
+					{
+						containing.add(i);
+					}
+				}
+				assertArrayEquals(toArray(expected), index.candidates(x, y, x + size, y + size));
+				assertArrayEquals(toArray(containing), index.containing(x, y));
+			}
+		}
+	}
+
+	private static int[] toArray(List<Integer> list)
+	{
+		int[] array = new int[list.size()];
+		for (int i = 0; i < array.length; i++)
+		{
+			array[i] = list.get(i);
+		}
+		return array;
+	}
+}
@@ -0,0 +1,336 @@
+package com.sromku.polygon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PreparedPolygonTest
+{
+	// Points closer than this to an edge may be counted either way by a containment test
+	private static final double NEAR_EDGE = 1e-4;
+
+	/**
+	 * A star with many edges, its vertices jittered so that edges run in all directions
+	 */
+	static Polygon star(int points, long seed)
+	{
+		Random random = new Random(seed);
+		Polygon.Builder builder = Polygon.Builder();
+		for (int i = 0; i < 2 * points; i++)
+		{
+			double angle = Math.PI * i / points;
+			double radius = (i % 2 == 0 ? 10 : 4) + random.nextDouble();
+			builder.addVertex(new Point((float) (radius * Math.cos(angle)), (float) (radius * Math.sin(angle))));
+		}
+		return builder.build();
+	}
+
+	/**
+	 * A comb of rectangular teeth, with many horizontal edges
+	 */
+	static Polygon comb(int teeth)
+	{
+		Polygon.Builder builder = Polygon.Builder();
+		builder.addVertex(new Point(0, 0));
+		for (int i = 0; i < teeth; i++)
+		{
+			builder.addVertex(new Point(2 * i, 5));
+			builder.addVertex(new Point(2 * i + 1, 5));
+			builder.addVertex(new Point(2 * i + 1, 1));
+			builder.addVertex(new Point(2 * i + 2, 1));
+		}
+		builder.addVertex(new Point(2 * teeth, 0));
+		return builder.build();
+	}
+
+	/**
+	 * A staircase, with horizontal edges at many different heights
+	 */
+	static Polygon staircase(int steps)
+	{
+		Polygon.Builder builder = Polygon.Builder();
+		builder.addVertex(new Point(0, 0));
+		builder.addVertex(new Point(steps, 0));
+		for (int k = 1; k <= steps; k++)
+		{
+			builder.addVertex(new Point(steps - k + 1, k));
+			builder.addVertex(new Point(steps - k, k));
+		}
+		return builder.build();
+	}
+
+	/**
+	 * A square with a square hole
+	 */
+	static Polygon squareWithHole()
+	{
+		return Polygon.Builder()
+			.addVertex(new Point(-5, -5)).addVertex(new Point(5, -5)).addVertex(new Point(5, 5)).addVertex(new Point(-5, 5)).close()
+			.addVertex(new Point(-2, -2)).addVertex(new Point(2, -2)).addVertex(new Point(2, 2)).addVertex(new Point(-2, 2)).close()
+			.build();
+	}
+
+	/**
+	 * Even-odd crossing test over all sides, computed independently of the code under test
+	 */
+	static boolean referenceContains(Polygon polygon, double x, double y)
+	{
+		boolean inside = false;
+		for (Line side : polygon.getSides())
+		{
+			double x0 = side.getStart().x, y0 = side.getStart().y;
+			double x1 = side.getEnd().x, y1 = side.getEnd().y;
+			if ((y0 > y) != (y1 > y) && x < x0 + (y - y0) * (x1 - x0) / (y1 - y0))
+			{
+				inside = !inside;
+			}
+		}
+		return inside;
+	}
+
+	static double distanceToEdges(Polygon polygon, double x, double y)
+	{
+		double best = Double.POSITIVE_INFINITY;
+		for (Line side : polygon.getSides())
+		{
+			double x0 = side.getStart().x, y0 = side.getStart().y;
+			double dx = side.getEnd().x - x0, dy = side.getEnd().y - y0;
+			double t = ((x - x0) * dx + (y - y0) * dy) / (dx * dx + dy * dy);
+			t = Math.max(0, Math.min(1, t));
+			best = Math.min(best, Math.hypot(x0 + t * dx - x, y0 + t * dy - y));
+		}
+		return best;
+	}
+
+	static List<Polygon> polygons()
+	{
+		List<Polygon> polygons = new ArrayList<Polygon>();
+		polygons.add(star(150, 1));
+		polygons.add(comb(40));
+		polygons.add(squareWithHole());
+		polygons.add(staircase(100));
+		return polygons;
+	}
+
+	/**
+	 * Random points over the bounding box and a margin around it, and the vertices and midpoints of the edges, along with points
+	 * just off the midpoints
+	 */
+	static List<double[]> queries(Polygon polygon, PreparedPolygon prepared, long seed)
+	{
+		Random random = new Random(seed);
+		List<double[]> queries = new ArrayList<double[]>();
+		double width = prepared.getXMax() - prepared.getXMin();
+		double height = prepared.getYMax() - prepared.getYMin();
+		for (int i = 0; i < 20000; i++)
+		{
+			queries.add(new double[] { prepared.getXMin() - 1 + random.nextDouble() * (width + 2),
+				prepared.getYMin() - 1 + random.nextDouble() * (height + 2) });
+		}
+		for (Line side : polygon.getSides())
+		{
+			Point start = side.getStart();
+			Point end = side.getEnd();
+			queries.add(new double[] { start.x, start.y });
+			queries.add(new double[] { (start.x + end.x) / 2.0, (start.y + end.y) / 2.0 });
+			for (double offset : new double[] { -0.02, -0.005, 0.005, 0.02 })
+			{
+				queries.add(new double[] { (start.x + end.x) / 2.0, (start.y + end.y) / 2.0 + offset });
+				queries.add(new double[] { (start.x + end.x) / 2.0 + offset, (start.y + end.y) / 2.0 });
+			}
+		}
+		return queries;
+	}
+
+	/**
+	 * Points over the bounding box and a margin around it, away from every edge, where the ray casting in {@link Polygon#contains(Point)}
+	 * has no edge cases to disagree on
+	 */
+	static List<Point> pointsOffEdges(Polygon polygon, long seed)
+	{
+		List<Point> points = new ArrayList<Point>();
+		PreparedPolygon prepared = new PreparedPolygon(polygon, false);
+		for (double[] q : queries(polygon, prepared, seed))
+		{
+			Point point = new Point((float) q[0], (float) q[1]);
+			if (distanceToEdges(polygon, point.x, point.y) > NEAR_EDGE)
+			{
+				points.add(point);
+			}
+		}
+		return points;
+	}
+
+	@Test
+	public void preparedPolygonMatchesPolygonTest()
+	{
+		for (Polygon polygon : polygons())
+		{
+			PreparedPolygon prepared = new PreparedPolygon(polygon, false);
+			int sloped = 0;
+			for (Line side : polygon.getSides())
+			{
+				if (side.getStart().y != side.getEnd().y)
+				{
+					sloped++;
+				}
+			}
+			assertEquals(sloped, prepared.getEdgeCount());
+			for (Point point : pointsOffEdges(polygon, 7))
+			{
+				assertEquals(point.x + "," + point.y, polygon.contains(point), prepared.contains(point));
+			}
+		}
+	}
+
+	@Test
+	public void containsAgreesWithReferenceTest()
+	{
+		for (Polygon polygon : polygons())
+		{
+			PreparedPolygon flat = new PreparedPolygon(polygon, false);
+			PreparedPolygon indexed = new PreparedPolygon(polygon, true);
+			PreparedPolygon raster = new PreparedPolygon(polygon, true, 4096);
+			PreparedPolygon coarse = new PreparedPolygon(polygon, false, 16);
+			assertFalse(flat.isIndexed());
+			assertTrue(indexed.isIndexed());
+			assertTrue(raster.isRasterized());
+			for (double[] q : queries(polygon, flat, 2))
+			{
+				boolean flatAnswer = flat.contains(q[0], q[1]);
+				// The index and grid must not change any answer, even on an edge
+				assertEquals(flatAnswer, indexed.contains(q[0], q[1]));
+				assertEquals(flatAnswer, raster.contains(q[0], q[1]));
+				assertEquals(flatAnswer, coarse.contains(q[0], q[1]));
+				if (distanceToEdges(polygon, q[0], q[1]) > NEAR_EDGE)
+				{
+					assertEquals(q[0] + "," + q[1], referenceContains(polygon, q[0], q[1]), flatAnswer);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void indexedPolygonAgreesWithReferenceTest()
+	{
+		Polygon plain = star(150, 3);
+		Polygon.Builder builder = Polygon.Builder().indexEdges();
+		for (Line side : plain.getSides())
+		{
+			builder.addVertex(side.getStart());
+		}
+		Polygon indexed = builder.build();
+		for (double[] q : queries(plain, new PreparedPolygon(plain), 4))
+		{
+			Point point = new Point((float) q[0], (float) q[1]);
+			if (distanceToEdges(plain, point.x, point.y) > NEAR_EDGE)
+			{
+				assertEquals(referenceContains(plain, point.x, point.y), indexed.contains(point));
+			}
+		}
+	}
+
+	/**
+	 * Build the polygon again from its sides, closing each ring where it returns to its first vertex
+	 */
+	static Polygon rebuild(Polygon polygon, boolean indexEdges)
+	{
+		Polygon.Builder builder = Polygon.Builder();
+		if (indexEdges)
+		{
+			builder.indexEdges();
+		}
+		Point first = null;
+		for (Line side : polygon.getSides())
+		{
+			if (first == null)
+			{
+				first = side.getStart();
+			}
+			builder.addVertex(side.getStart());
+			if (side.getEnd().x == first.x && side.getEnd().y == first.y)
+			{
+				builder.close();
+				first = null;
+			}
+		}
+		return builder.build();
+	}
+
+	@Test
+	public void edgeIndexDoesNotChangeContainsTest()
+	{
+		for (Polygon polygon : polygons())
+		{
+			Polygon plain = rebuild(polygon, false);
+			Polygon indexed = rebuild(polygon, true);
+			assertEquals(polygon.getSides().size(), indexed.getSides().size());
+			for (Point point : pointsOffEdges(polygon, 8))
+			{
+				assertEquals(point.x + "," + point.y, plain.contains(point), indexed.contains(point));
+			}
+			PreparedPolygon flat = new PreparedPolygon(polygon, false);
+			PreparedPolygon slabs = new PreparedPolygon(polygon, true);
+			for (double[] q : queries(polygon, flat, 9))
+			{
+				assertEquals(flat.contains(q[0], q[1]), slabs.contains(q[0], q[1]));
+			}
+		}
+	}
+
+	@Test
+	public void locateAgreesWithReferenceTest()
+	{
+		double epsilon = 0.01;
+		for (Polygon polygon : polygons())
+		{
+			PreparedPolygon[] prepared = { new PreparedPolygon(polygon, false), new PreparedPolygon(polygon, true),
+				new PreparedPolygon(polygon, true, 4096) };
+			for (double[] q : queries(polygon, prepared[0], 5))
+			{
+				double distance = distanceToEdges(polygon, q[0], q[1]);
+				Location expected;
+				if (distance < epsilon - NEAR_EDGE)
+				{
+					expected = Location.ON_EDGE;
+				}
+				else if (distance > epsilon + NEAR_EDGE)
+				{
+					expected = referenceContains(polygon, q[0], q[1]) ? Location.INSIDE : Location.OUTSIDE;
+				}
+				else
+				{
+					continue;
+				}
+				for (PreparedPolygon p : prepared)
+				{
+					assertEquals(q[0] + "," + q[1], expected, p.locate(q[0], q[1], epsilon));
+				}
+				assertEquals(expected, polygon.locate(new Point((float) q[0], (float) q[1]), epsilon));
+			}
+		}
+	}
+
+	@Test
+	public void locateWithoutToleranceMatchesContains()
+	{
+		for (Polygon polygon : polygons())
+		{
+			PreparedPolygon prepared = new PreparedPolygon(polygon, true, 4096);
+			for (double[] q : queries(polygon, prepared, 6))
+			{
+				Location location = prepared.locate(q[0], q[1], 0);
+				if (location != Location.ON_EDGE)
+				{
+					assertEquals(prepared.contains(q[0], q[1]), location == Location.INSIDE);
+				}
+			}
+		}
+	}
+}